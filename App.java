@@ -1,9 +1,18 @@
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.TreeSet;
 import java.util.Random;
 import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntUnaryOperator;
 
 public class App {
     /*
@@ -58,61 +67,180 @@ public class App {
     static boolean PrintDeleteTrees = false;
 
     /*
-     * END OF CONFIGURATION OPTIONS
+     * Where the TwoFourTree keeps its nodes. POOL stores them in primitive arrays
+     * instead of one object per node. Switch between the two to compare the heap
+     * and find columns.
      */
+    static TwoFourTree.Storage StorageEngine = TwoFourTree.Storage.NODES;
 
-    // Only gets used if !ShouldBeRandom.
-    static Random RandomGenerator = new Random(1);
+    /*
+     * Switch on TwoFourTree metrics for the main tree of each case and print its
+     * splits, rotations, merges, descent depth, height and node mix after the
+     * timings. Off by default, since counting is not free.
+     */
+    static boolean PrintMetrics = false;
 
-    private static ArrayList<Integer> deDuplicateAndScramble(ArrayList<Integer> list) {
-        TreeSet<Integer> deDuped = new TreeSet<Integer>(list);
-        ArrayList<Integer> outList = new ArrayList<Integer>(deDuped);
-        if (ShouldShuffle) {
-            Collections.shuffle(outList);
-        }
+    /*
+     * How the generated integers and the finds on them are distributed. See
+     * Workload.Distribution. ZIPFIAN finds keep hitting the same few keys, and
+     * ZIPFIAN integers are mostly small ones, so those cases come out smaller.
+     */
+    static Workload.Distribution KeyDistribution = Workload.Distribution.UNIFORM;
+    static Workload.Distribution StrikeDistribution = Workload.Distribution.UNIFORM;
 
-        return outList;
-    }
+    /*
+     * The seed of the generated workloads. 0 picks one from RandomGenerator; the
+     * seed in use is printed at the start, so any run can be repeated with it.
+     */
+    static long WorkloadSeed = 0;
 
-    private static ArrayList<Integer> generateIntArrayList(int howMany) {
-        ArrayList<Integer> list = new ArrayList<Integer>(howMany);
+    /*
+     * Also build each case's tree with TwoFourTree.fromUnsorted, which sorts the
+     * keys and builds the tree bottom-up instead of calling addValue per key.
+     */
+    static boolean RunBulkLoadCases = true;
 
-        for (int i = 0; i < howMany; i++) {
-            list.add(Integer.valueOf(RandomGenerator.nextInt(1000000000)));
-        }
-        list = deDuplicateAndScramble(list);
+    /*
+     * Also look up each case's strikes with a single hasValues batch call, and
+     * print how much faster that is than calling hasValue once per key.
+     */
+    static boolean RunBatchFinds = true;
 
-        return list;
-    }
+    /*
+     * Also time adding each case's integers to a fresh tree the old way, with a
+     * hasValue check before every addValue. addValue now rejects values that are
+     * already present during its own descent, so the check is pure overhead.
+     */
+    static boolean RunCheckedAdds = true;
 
-    private static ArrayList<Integer> generateStrikeList(List<Integer> fromList, int howMany) {
-        ArrayList<Integer> strikeList = new ArrayList<Integer>(howMany);
-        int fromLast = fromList.size() - 1;
+    /*
+     * Run the order-statistics cases, which build trees that keep subtree counts,
+     * by adding one value at a time and then deleting part of them, and bottom-up
+     * with fromSorted, and check every rank and select against an in-order walk
+     * and countInRange against a tree that has to scan.
+     */
+    static boolean RunOrderStatisticsCases = true;
 
-        for (int i = 0; i < howMany; i++) {
-            strikeList.add(fromList.get(RandomGenerator.nextInt(fromLast)));
-        }
-        strikeList = deDuplicateAndScramble(strikeList);
+    /*
+     * Run the batch update cases, which grow and shrink a tree with addAll and
+     * deleteAll. Each gets a small batch, which goes in one value at a time, and a
+     * large one, which rebuilds the tree; the batches repeat values and mix ones
+     * already in the tree with ones that aren't. Every result is checked against a
+     * TreeSet, and rank and select are checked after every batch.
+     */
+    static boolean RunBatchUpdateCases = true;
 
-        return strikeList;
-    }
+    /*
+     * Run the multi-threaded cases, which compare ConcurrentTwoFourTree against a
+     * TwoFourTree behind one global lock, doubling the thread count from 1 up to
+     * MaxThreads. The workload is 90% finds, 5% adds and 5% deletes.
+     */
+    static boolean RunConcurrentCases = true;
+    static int MaxThreads = Runtime.getRuntime().availableProcessors();
 
-    private static ArrayList<Integer> generateRemoveList(List<Integer> fromList) {
-        ArrayList<Integer> removeList = new ArrayList<Integer>(fromList.size() / 2);
+    /*
+     * Run the read-scaling stress case: one writer thread keeps adding and deleting
+     * values while a growing number of lock-free readers look up values that are
+     * always present and values that never are, right next to the ones the writer
+     * churns. Any wrong answer means a reader saw a node half-way through a change.
+     */
+    static boolean RunReadStressCases = true;
+    static int ReadStressMillis = 2000;
 
-        for (int i = 0; i < fromList.size() / 2; i++) {
-            removeList.add(fromList.get(i));
-        }
-        removeList = deDuplicateAndScramble(removeList);
+    /*
+     * Run the snapshot cases, which add and then delete the same integers in a
+     * TwoFourTree and in a PersistentTwoFourTree that takes a snapshot every
+     * SnapshotInterval writes, to show what copy-on-write costs on the write path.
+     * Each snapshot taken after the adds is checked once the deletes are done.
+     */
+    static boolean RunSnapshotCases = true;
+    static int[] SnapshotIntervals = { 0, 1000, 1 };
+
+    /*
+     * Run the memory-mapped cases, which build a MappedTwoFourTree in a temporary
+     * file, close it, and time how long opening it again and the first finds take,
+     * next to rebuilding a TwoFourTree from scratch with addValue.
+     */
+    static boolean RunMappedCases = true;
+
+    /*
+     * Run the checkpoint cases, which save a TwoFourTree to a temporary file with
+     * writeTo, load it back with readFrom, and check the loaded tree, next to
+     * rebuilding the same tree with addValue.
+     */
+    static boolean RunCheckpointCases = true;
+
+    /*
+     * Run the durable cases, which add integers to a DurableTwoFourTree from 1, 4
+     * and 16 threads to measure sustained ops/sec under group commit, then time
+     * recovering the tree from its log alone and from a checkpoint. Each log frame
+     * is held open for at most DurableDelayMicros to gather more changes.
+     */
+    static boolean RunDurableCases = true;
+    static int[] DurableThreads = { 1, 4, 16 };
+    static long DurableDelayMicros = 0;
+
+    /*
+     * Run the fanout cases, which add the same integers to a TwoFourTree and to a
+     * BTree with each of FanoutKeysPerNode keys per node, and time the same finds
+     * in each, to show how lookup latency falls as nodes fill whole cache lines.
+     */
+    static boolean RunFanoutCases = true;
+    static int[] FanoutKeysPerNode = { 3, 16, 32, 64 };
 
-        return removeList;
+    /*
+     * Run the frozen cases, which freeze a TwoFourTree into a FrozenTwoFourTree
+     * and compare the heap each takes and how fast each answers the same finds,
+     * then check floor, ceiling and ranges on the frozen tree against the other.
+     */
+    static boolean RunFrozenCases = true;
+
+    /*
+     * Run the filter cases, which look up a mix of present and absent integers in
+     * a TwoFourTree with and without its Bloom filter, for each share of misses
+     * in FilterMissPercents, then delete from the filtered tree to show how often
+     * the filter is rebuilt.
+     */
+    static boolean RunFilterCases = true;
+    static int[] FilterMissPercents = { 0, 25, 50, 75, 100 };
+
+    /*
+     * Run the cache cases, which look up integers picked with a Zipfian distribution,
+     * so a few keys come up over and over, in a TwoFourTree without its cache and
+     * with a cache of each of CacheCapacities keys, then check that deleting and
+     * re-adding the hottest keys changes what the cache answers.
+     */
+    static boolean RunCacheCases = true;
+    static int[] CacheCapacities = { 1024, 8192, 65536 };
+
+    /*
+     * Run the navigation cases, which time lower and higher lookups next to plain
+     * finds, check floor, lower, ceiling, higher, first and last against a TreeSet
+     * on both storage engines, then use the tree as a priority queue by draining it
+     * with pollFirst and pollLast, checking the values against the TreeSet's.
+     */
+    static boolean RunNavigationCases = true;
+
+    /*
+     * END OF CONFIGURATION OPTIONS
+     */
+
+    // Only gets used if !ShouldBeRandom.
+    static Random RandomGenerator = new Random(1);
+
+    static Workload Work;
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
     }
 
-    private static <T> int executeFinds(TwoFourTree coll, List<Integer> strikes) {
+    private static <T> int executeFinds(TwoFourTree coll, int[] strikes) {
         boolean sentinel;
         int failures = 0;
 
-        for (Integer e : strikes) {
+        for (int e : strikes) {
             sentinel = coll.hasValue(e);
             if (sentinel == false) {
                 if (NoisyFinds) {
@@ -129,11 +257,11 @@ public class App {
         return 0;
     }
 
-    private static <T> int executeComparisonFinds(TreeSet<Integer> coll, List<Integer> strikes) {
+    private static <T> int executeComparisonFinds(TreeSet<Integer> coll, int[] strikes) {
         boolean sentinel;
         int failures = 0;
 
-        for (Integer e : strikes) {
+        for (int e : strikes) {
             sentinel = coll.contains(e);
             if (sentinel == false) {
                 if (NoisyFinds) {
@@ -154,25 +282,61 @@ public class App {
         System.out.printf("CASE: %,8d integers, %,8d finds, %,8d removals.  Generating...\n", listSize, strikeSize,
                 strikeSize / 2);
 
-        ArrayList<Integer> intlist = generateIntArrayList(listSize);
-        ArrayList<Integer> strikes = generateStrikeList(intlist, strikeSize);
-        ArrayList<Integer> removeList = generateRemoveList(strikes);
+        int[] intlist = Work.keys(listSize, KeyDistribution);
+        int[] strikes = Work.strikes(intlist, strikeSize, StrikeDistribution);
+        int[] removeList = Work.removals(strikes);
 
         long start;
         long end;
         long ms;
 
-        TwoFourTree theTree = new TwoFourTree();
+        long heapBefore = usedHeap();
+        TwoFourTree theTree = new TwoFourTree(StorageEngine);
+        if (PrintMetrics && StorageEngine == TwoFourTree.Storage.NODES) {
+            theTree.enableMetrics();
+        }
 
         System.out.printf("  TwoFourTree ");
 
         start = System.currentTimeMillis();
-        for (Integer e : intlist) {
+        for (int e : intlist) {
             theTree.addValue(e);
         }
         end = System.currentTimeMillis();
         ms = end - start;
         System.out.printf("add: %,7dms  ", ms);
+        long heapUsed = usedHeap() - heapBefore;
+        System.out.printf("heap: %,7.1fMB (%4.1f B/key)  ", heapUsed / 1048576.0, (double) heapUsed / theTree.size());
+
+        if (RunCheckedAdds) {
+            // time both ways on fresh trees so neither gets the warm-up
+            TwoFourTree plainTree = new TwoFourTree(StorageEngine);
+            TwoFourTree checkedTree = new TwoFourTree(StorageEngine);
+
+            start = System.currentTimeMillis();
+            for (int e : intlist) {
+                plainTree.addValue(e);
+            }
+            end = System.currentTimeMillis();
+            long addMs = end - start;
+
+            start = System.currentTimeMillis();
+            for (int e : intlist) {
+                if (!checkedTree.hasValue(e)) {
+                    checkedTree.addValue(e);
+                }
+            }
+            end = System.currentTimeMillis();
+            ms = end - start;
+            System.out.printf("plain: %,7dms  checked: %,7dms (%.1fx)  ", addMs, ms,
+                    (double) Math.max(ms, 1) / Math.max(addMs, 1));
+
+            for (int e : strikes) {
+                if (theTree.addValue(e)) {
+                    System.out.printf("\nAdded duplicate %d", e);
+                }
+            }
+        }
 
         start = System.currentTimeMillis();
         executeFinds(theTree, strikes);
@@ -180,9 +344,31 @@ public class App {
         ms = end - start;
         System.out.printf("find: %,7dms  ", ms);
 
+        if (RunBatchFinds) {
+            long loopMs = ms;
+            int[] strikeKeys = strikes;
+            boolean[] found = new boolean[strikeKeys.length];
+
+            // the per-key loop was compiled during the earlier cases, so give the
+            // batch walk one untimed call to catch up before timing it
+            theTree.hasValues(strikeKeys, found);
+
+            start = System.currentTimeMillis();
+            theTree.hasValues(strikeKeys, found);
+            end = System.currentTimeMillis();
+            ms = end - start;
+            System.out.printf("batch: %,7dms (%.1fx)  ", ms, (double) Math.max(loopMs, 1) / Math.max(ms, 1));
+
+            for (int i = 0; i < found.length; i++) {
+                if (!found[i]) {
+                    System.out.printf("\nBatch failed to find %d", strikeKeys[i]);
+                }
+            }
+        }
+
         if (includeRemoves) {
             start = System.currentTimeMillis();
-            for (Integer e : removeList) {
+            for (int e : removeList) {
                 if (PrintDeleteTrees) {
                     System.out.printf("----- delete %d from tree\n", e);
                     theTree.printInOrder();
@@ -207,18 +393,41 @@ public class App {
             end = System.currentTimeMillis();
             ms = end - start;
             System.out.printf("find: %,6dms  ", ms);
-            System.out.printf("(Should be %,9d missing)  ", removeList.size());
+            System.out.printf("(Should be %,9d missing)  ", removeList.length);
         }
 
         System.out.printf("\n");
         // theTree.printInOrder();
 
+        if (theTree.metrics() != null) {
+            System.out.printf("  Metrics     %s\n", theTree.metrics());
+        }
+
+        if (RunBulkLoadCases) {
+            int[] keys = intlist;
+
+            System.out.printf("  Bulk load   ");
+
+            start = System.currentTimeMillis();
+            TwoFourTree loaded = TwoFourTree.fromUnsorted(keys);
+            end = System.currentTimeMillis();
+            ms = end - start;
+            System.out.printf("add: %,7dms  ", ms);
+
+            start = System.currentTimeMillis();
+            executeFinds(loaded, strikes);
+            end = System.currentTimeMillis();
+            ms = end - start;
+            System.out.printf("find: %,7dms  ", ms);
+            System.out.printf("\n");
+        }
+
         TreeSet<Integer> theComparison = new TreeSet<Integer>();
 
         System.out.printf("  TreeSet     ");
 
         start = System.currentTimeMillis();
-        for (Integer e : intlist) {
+        for (int e : intlist) {
             theComparison.add(e);
         }
         end = System.currentTimeMillis();
@@ -233,7 +442,7 @@ public class App {
 
         if (includeRemoves) {
             start = System.currentTimeMillis();
-            for (Integer e : removeList) {
+            for (int e : removeList) {
                 // System.out.printf("----- delete %d from tree\n", e);
                 /// theTree.printInOrder();
                 theComparison.remove(e);
@@ -247,15 +456,176 @@ public class App {
             end = System.currentTimeMillis();
             ms = end - start;
             System.out.printf("find: %,6dms  ", ms);
-            System.out.printf("(Should be %,9d missing)  ", removeList.size());
+            System.out.printf("(Should be %,9d missing)  ", removeList.length);
         }
 
         System.out.printf("\n");
         System.gc();
     }
 
+    public static void executeOrderStatisticsCase(int listSize, int strikeSize) {
+        System.out.printf("ORDER STATISTICS: %,8d integers, %,8d removals.  Generating...\n", listSize, strikeSize / 2);
+
+        int[] keys = Work.keys(listSize, KeyDistribution);
+        int[] removes = Work.removals(Work.strikes(keys, strikeSize, StrikeDistribution));
+
+        //splits, rotations, merges and recycled nodes all have to keep the counts right
+        TwoFourTree counted = new TwoFourTree(TwoFourTree.Storage.NODES, true);
+        TwoFourTree scanned = new TwoFourTree();
+        for (int e : keys) {
+            counted.addValue(e);
+            scanned.addValue(e);
+        }
+        for (int e : removes) {
+            counted.deleteValue(e);
+            scanned.deleteValue(e);
+        }
+        //adding half of them back makes the splits reuse the nodes the merges let go
+        for (int i = 0; i < removes.length / 2; i++) {
+            counted.addValue(removes[i]);
+            scanned.addValue(removes[i]);
+        }
+        System.out.printf("  incremental ");
+        checkOrderStatistics(counted, scanned);
+
+        //the bulk load sets the counts itself instead of keeping them up
+        int[] sorted = Workload.distinct(keys.clone());
+        System.out.printf("  fromSorted  ");
+        checkOrderStatistics(TwoFourTree.fromSorted(sorted, 0, sorted.length, 2, true),
+                TwoFourTree.fromSorted(sorted, 0, sorted.length, 2, false));
+    }
+
+    public static void executeBatchUpdateCase(int listSize) {
+        System.out.printf("BATCH UPDATES: %,8d integers.  Generating...\n", listSize);
+
+        int[] keys = Work.keys(listSize, KeyDistribution);
+        TwoFourTree theTree = new TwoFourTree(TwoFourTree.Storage.NODES, true);
+        TreeSet<Integer> theComparison = new TreeSet<Integer>();
+
+        //half the keys to start from, so later batches have absent keys to pick as well as present ones
+        checkBatchUpdate(theTree, theComparison, "addAll    start", true, Arrays.copyOf(keys, keys.length / 2));
+
+        //addAll and deleteAll only rebuild once a batch is at least an eighth of the tree
+        checkBatchUpdate(theTree, theComparison, "addAll    small", true, mixedBatch(keys, theTree.size() / 32));
+        checkBatchUpdate(theTree, theComparison, "addAll    large", true, mixedBatch(keys, theTree.size() / 2));
+        checkBatchUpdate(theTree, theComparison, "deleteAll small", false, mixedBatch(keys, theTree.size() / 32));
+        checkBatchUpdate(theTree, theComparison, "deleteAll large", false, mixedBatch(keys, theTree.size() / 2));
+    }
+
+/*
+ * Returns howMany values: a mix of the case's keys, whether the tree holds them or not, values
+ * that were never keys, and repeats of values earlier in the batch.
+ */
+    private static int[] mixedBatch(int[] keys, int howMany) {
+        int[] batch = new int[howMany];
+        for (int i = 0; i < howMany; i++) {
+            int pick = RandomGenerator.nextInt(4);
+            if (pick == 0) {
+                batch[i] = RandomGenerator.nextInt(Workload.KEY_BOUND);
+            } else if (pick == 1 && i > 0) {
+                batch[i] = batch[RandomGenerator.nextInt(i)];
+            } else {
+                batch[i] = keys[RandomGenerator.nextInt(keys.length)];
+            }
+        }
+        return batch;
+    }
+
+/*
+ * Applies the batch to theTree with addAll or deleteAll and to theComparison one value at a
+ * time, then checks the count that came back, the values left, and rank and select on them.
+ */
+    private static void checkBatchUpdate(TwoFourTree theTree, TreeSet<Integer> theComparison, String label,
+            boolean add, int[] batch) {
+        boolean rebuilds = theTree.size() < 8 * Arrays.stream(batch).distinct().count();
+        System.out.printf("  %s %,8d values %-12s ", label, batch.length, rebuilds ? "(rebuild)" : "(one by one)");
+
+        long start = System.currentTimeMillis();
+        int changed = add ? theTree.addAll(batch) : theTree.deleteAll(batch);
+        long end = System.currentTimeMillis();
+        System.out.printf("%,7dms  ", end - start);
+
+        int expected = 0;
+        for (int e : batch) {
+            if (add ? theComparison.add(e) : theComparison.remove(e)) {
+                expected++;
+            }
+        }
+
+        int wrong = 0;
+        int i = 0;
+        for (int e : theComparison) {
+            if (!theTree.hasValue(e) || theTree.select(i) != e || theTree.rank(e) != i) {
+                wrong++;
+            }
+            i++;
+        }
+        System.out.printf("%s %,d of %,d", add ? "added" : "removed", changed, batch.length);
+        if (changed != expected || wrong > 0 || theTree.size() != theComparison.size()) {
+            System.out.printf("  (should be %,d; %,d wrong, size %,d of %,d)", expected, wrong, theTree.size(),
+                    theComparison.size());
+        }
+        System.out.printf("\n");
+    }
+
+/*
+ * Checks rank and select on counted, a tree with order statistics, against its own in-order
+ * walk, and countInRange against scanned, a tree with the same values that counts by scanning.
+ */
+    private static void checkOrderStatistics(TwoFourTree counted, TwoFourTree scanned) {
+        int[] inOrder = new int[counted.size()];
+        int[] next = { 0 };
+        counted.forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, e -> inOrder[next[0]++] = e);
+
+        long start = System.currentTimeMillis();
+        int wrong = 0;
+        for (int i = 0; i < inOrder.length; i++) {
+            if (counted.select(i) != inOrder[i] || counted.rank(inOrder[i]) != i) {
+                wrong++;
+            }
+            //one past a value, present or not, has that value and every one before it below
+            if (inOrder[i] != Integer.MAX_VALUE && counted.rank(inOrder[i] + 1) != i + 1) {
+                wrong++;
+            }
+        }
+        if (counted.rank(Integer.MIN_VALUE) != 0) {
+            wrong++;
+        }
+        long end = System.currentTimeMillis();
+        System.out.printf("rank+select: %,7dms  ", end - start);
+
+        //short ranges from every part of the tree, and a few open-ended ones, since the scanning
+        //tree has to walk every value of those; hi == Integer.MAX_VALUE takes its own path
+        int ranges = 0;
+        start = System.currentTimeMillis();
+        for (int i = 0; i < inOrder.length; i += Math.max(1, inOrder.length / 1000)) {
+            int lo = inOrder[i];
+            int hi = inOrder[Math.min(inOrder.length - 1, i + RandomGenerator.nextInt(1000))];
+            boolean open = RandomGenerator.nextInt(100) == 0;
+            int[][] bounds = open
+                    ? new int[][] { { lo, Integer.MAX_VALUE }, { Integer.MIN_VALUE, hi }, { lo + 1, Integer.MAX_VALUE } }
+                    : new int[][] { { lo, hi }, { lo + 1, hi - 1 }, { hi, lo - 1 } };
+            for (int[] range : bounds) {
+                if (counted.countInRange(range[0], range[1]) != scanned.countInRange(range[0], range[1])) {
+                    wrong++;
+                }
+                ranges++;
+            }
+        }
+        if (counted.countInRange(Integer.MIN_VALUE, Integer.MAX_VALUE) != scanned.size()) {
+            wrong++;
+        }
+        end = System.currentTimeMillis();
+        System.out.printf("%,d ranges: %,7dms", ranges + 1, end - start);
+
+        if (wrong > 0 || counted.size() != scanned.size()) {
+            System.out.printf("  (%,d wrong, size %,d of %,d)", wrong, counted.size(), scanned.size());
+        }
+        System.out.printf("\n");
+    }
+
     public static void executeStaticCase(List<Integer> values) {
-        TwoFourTree tft = new TwoFourTree();
+        TwoFourTree tft = new TwoFourTree(StorageEngine);
 
         if (ShouldShuffle)
             Collections.shuffle(values);
@@ -270,13 +640,28 @@ public class App {
             }
         }
 
+        if (StorageEngine == TwoFourTree.Storage.NODES) {
+            int[] previous = { Integer.MIN_VALUE };
+            int inRange = tft.countInRange(Integer.MIN_VALUE, Integer.MAX_VALUE);
+            tft.forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, v -> {
+                if (v < previous[0]) {
+                    System.out.printf("Range scan out of order at %d in static test\n", v);
+                }
+                previous[0] = v;
+            });
+            if (inRange != values.size()) {
+                System.out.printf("Range count found %d of %d values in static test\n", inRange, values.size());
+            }
+        }
+
         if (PrintStaticTree) {
             System.out.println("***** Static test:");
             tft.printInOrder();
         }
 
         if (RunDeleteCases) {
-            List<Integer> deletes = generateStrikeList(values, values.size() / 5);
+            int[] deletes = Work.strikes(values.stream().mapToInt(Integer::intValue).toArray(), values.size() / 5,
+                    Workload.Distribution.UNIFORM);
 
             for (int i : deletes) {
                 tft.deleteValue(i);
@@ -286,16 +671,859 @@ public class App {
             }
             if (PrintStaticTree) {
                 System.out.printf("***** After deleting nodes: ");
-                System.out.println(deletes.toString());
+                System.out.println(Arrays.toString(deletes));
                 tft.printInOrder();
             }
         }
 
     }
 
+    private static long runConcurrentWorkload(ConcurrentTwoFourTree concurrent, TwoFourTree locked, int[] keys,
+            int threadCount, int totalOps) throws InterruptedException {
+        Thread[] threads = new Thread[threadCount];
+        CountDownLatch ready = new CountDownLatch(threadCount);
+        CountDownLatch go = new CountDownLatch(1);
+        int opsPerThread = totalOps / threadCount;
+
+        for (int t = 0; t < threadCount; t++) {
+            long seed = RandomGenerator.nextLong();
+            threads[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < opsPerThread; i++) {
+                    int op = random.nextInt(100);
+                    int key = (op < 95) ? keys[random.nextInt(keys.length)] : random.nextInt(1000000000);
+                    if (concurrent != null) {
+                        if (op < 90) {
+                            concurrent.hasValue(key);
+                        } else if (op < 95) {
+                            concurrent.deleteValue(key);
+                        } else {
+                            concurrent.addValue(key);
+                        }
+                    } else {
+                        synchronized (locked) {
+                            if (op < 90) {
+                                locked.hasValue(key);
+                            } else if (op < 95) {
+                                locked.deleteValue(key);
+                            } else {
+                                locked.addValue(key);
+                            }
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void executeConcurrentCase(int listSize, int totalOps) throws InterruptedException {
+        System.out.printf("CONCURRENT: %,8d integers, %,8d mixed operations.  Generating...\n", listSize, totalOps);
+
+        int[] keys = Work.keys(listSize, KeyDistribution);
+
+        for (int threads = 1; threads <= MaxThreads; threads *= 2) {
+            ConcurrentTwoFourTree concurrent = new ConcurrentTwoFourTree();
+            TwoFourTree locked = new TwoFourTree(StorageEngine);
+            for (int key : keys) {
+                concurrent.addValue(key);
+                locked.addValue(key);
+            }
+
+            long concurrentNs = runConcurrentWorkload(concurrent, null, keys, threads, totalOps);
+            long lockedNs = runConcurrentWorkload(null, locked, keys, threads, totalOps);
+
+            System.out.printf("  %2d threads  ConcurrentTwoFourTree: %,8d ops/ms  global lock: %,8d ops/ms\n", threads,
+                    totalOps * 1000000L / Math.max(concurrentNs, 1), totalOps * 1000000L / Math.max(lockedNs, 1));
+        }
+    }
+
+    public static void executeReadStressCase(int listSize) throws InterruptedException {
+        System.out.printf("READ STRESS: %,8d integers, 1 writer, %,dms per run.  Generating...\n", listSize,
+                ReadStressMillis);
+
+        // every key is rounded down to a multiple of 4, which stays present; the writer
+        // keeps adding and deleting the key one above it, and the key two above it is
+        // never added, so all three share leaves and the writer's splits and merges
+        // move the very values the readers are looking for
+        int[] keys = Work.keys(listSize, KeyDistribution);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] &= ~3;
+        }
+
+        for (int readers = 1; readers <= MaxThreads; readers *= 2) {
+            ConcurrentTwoFourTree tree = new ConcurrentTwoFourTree();
+            for (int key : keys) {
+                tree.addValue(key);
+            }
+
+            AtomicBoolean stop = new AtomicBoolean(false);
+            AtomicLong reads = new AtomicLong();
+            AtomicLong wrong = new AtomicLong();
+            long writerSeed = RandomGenerator.nextLong();
+
+            Thread writer = new Thread(() -> {
+                Random random = new Random(writerSeed);
+                while (!stop.get()) {
+                    int key = keys[random.nextInt(keys.length)] + 1;
+                    if (random.nextBoolean()) {
+                        tree.addValue(key);
+                    } else {
+                        tree.deleteValue(key);
+                    }
+                }
+            });
+
+            Thread[] threads = new Thread[readers];
+            for (int t = 0; t < readers; t++) {
+                long seed = RandomGenerator.nextLong();
+                threads[t] = new Thread(() -> {
+                    Random random = new Random(seed);
+                    long count = 0;
+                    while (!stop.get()) {
+                        int key = keys[random.nextInt(keys.length)];
+                        if (!tree.hasValue(key)) {
+                            wrong.incrementAndGet();
+                        }
+                        if (tree.hasValue(key + 2)) {
+                            wrong.incrementAndGet();
+                        }
+                        count += 2;
+                    }
+                    reads.addAndGet(count);
+                });
+            }
+
+            writer.start();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            Thread.sleep(ReadStressMillis);
+            stop.set(true);
+            writer.join();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            System.out.printf("  %2d readers  %,8d reads/ms  %,9d retries  %,d wrong answers\n", readers,
+                    reads.get() / ReadStressMillis, tree.readRetries(), wrong.get());
+        }
+    }
+
+    public static void executeSnapshotCase(int listSize) {
+        System.out.printf("SNAPSHOTS: %,8d integers, %,8d removals.  Generating...\n", listSize, listSize / 2);
+
+        int[] keys = Work.keys(listSize, KeyDistribution);
+        int[] removes = Arrays.copyOf(keys, keys.length / 2);
+
+        long start;
+        long end;
+
+        System.out.printf("  TwoFourTree                       ");
+        TwoFourTree theTree = new TwoFourTree();
+        start = System.currentTimeMillis();
+        for (int key : keys) {
+            theTree.addValue(key);
+        }
+        end = System.currentTimeMillis();
+        System.out.printf("add: %,7dms  ", end - start);
+        start = System.currentTimeMillis();
+        for (int key : removes) {
+            theTree.deleteValue(key);
+        }
+        end = System.currentTimeMillis();
+        System.out.printf("del: %,7dms\n", end - start);
+
+        for (int interval : SnapshotIntervals) {
+            if (interval == 0) {
+                System.out.printf("  PersistentTwoFourTree no snapshot ");
+            } else {
+                System.out.printf("  PersistentTwoFourTree every %,5d ", interval);
+            }
+
+            PersistentTwoFourTree tree = new PersistentTwoFourTree();
+            int writes = 0;
+            start = System.currentTimeMillis();
+            for (int key : keys) {
+                tree.addValue(key);
+                if (interval > 0 && ++writes % interval == 0) {
+                    tree.snapshot();
+                }
+            }
+            end = System.currentTimeMillis();
+            System.out.printf("add: %,7dms  ", end - start);
+
+            PersistentTwoFourTree.Snapshot afterAdds = tree.snapshot();
+            start = System.currentTimeMillis();
+            for (int key : removes) {
+                tree.deleteValue(key);
+                if (interval > 0 && ++writes % interval == 0) {
+                    tree.snapshot();
+                }
+            }
+            end = System.currentTimeMillis();
+            System.out.printf("del: %,7dms  copies: %,9d  ", end - start, tree.copies());
+
+            // the deletes must not show through the snapshot taken before them
+            int seen = 0;
+            int previous = Integer.MIN_VALUE;
+            for (int value : afterAdds) {
+                if (seen > 0 && value <= previous) {
+                    System.out.printf("\nSnapshot out of order at %d", value);
+                }
+                previous = value;
+                seen++;
+            }
+            if (seen != keys.length || tree.size() != keys.length - removes.length) {
+                System.out.printf("(snapshot has %,d of %,d values)", seen, keys.length);
+            }
+            System.out.printf("\n");
+        }
+    }
+
+    public static void executeMappedCase(int listSize, int strikeSize) throws IOException {
+        System.out.printf("MAPPED: %,8d integers, %,8d finds.  Generating...\n", listSize, strikeSize);
+
+        int[] keys = Work.keys(listSize, KeyDistribution);
+        int[] strikes = Work.strikes(keys, strikeSize, StrikeDistribution);
+        Path file = Files.createTempFile("TwoFourTree", ".map");
+
+        long start;
+        long end;
+
+        try {
+            System.out.printf("  MappedTwoFourTree ");
+            MappedTwoFourTree mapped = new MappedTwoFourTree(file);
+            start = System.currentTimeMillis();
+            for (int e : keys) {
+                mapped.addValue(e);
+            }
+            end = System.currentTimeMillis();
+            System.out.printf("add: %,7dms  ", end - start);
+
+            start = System.currentTimeMillis();
+            mapped.close();
+            end = System.currentTimeMillis();
+            System.out.printf("force: %,7dms  file: %,7.1fMB  ", end - start, Files.size(file) / 1048576.0);
+
+            start = System.currentTimeMillis();
+            mapped = new MappedTwoFourTree(file);
+            end = System.currentTimeMillis();
+            System.out.printf("reopen: %,5dms  ", end - start);
+
+            int failures = 0;
+            start = System.currentTimeMillis();
+            for (int e : strikes) {
+                if (!mapped.hasValue(e)) {
+                    failures++;
+                }
+            }
+            end = System.currentTimeMillis();
+            System.out.printf("find: %,7dms  ", end - start);
+            if (failures > 0 || mapped.size() != keys.length) {
+                System.out.printf("(%,d missing, size %,d of %,d)", failures, mapped.size(), keys.length);
+            }
+            mapped.close();
+            System.out.printf("\n");
+
+            System.out.printf("  TwoFourTree       ");
+            start = System.currentTimeMillis();
+            TwoFourTree theTree = new TwoFourTree();
+            for (int e : keys) {
+                theTree.addValue(e);
+            }
+            end = System.currentTimeMillis();
+            System.out.printf("rebuild: %,7dms\n", end - start);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public static void executeCheckpointCase(int listSize, int strikeSize) throws IOException {
+        System.out.printf("CHECKPOINT: %,8d integers, %,8d finds.  Generating...\n", listSize, strikeSize);
+
+        int[] keys = Work.keys(listSize, KeyDistribution);
+        int[] strikes = Work.strikes(keys, strikeSize, StrikeDistribution);
+        Path file = Files.createTempFile("TwoFourTree", ".snap");
+
+        long start;
+        long end;
+
+        try {
+            start = System.currentTimeMillis();
+            TwoFourTree theTree = new TwoFourTree();
+            for (int e : keys) {
+                theTree.addValue(e);
+            }
+            end = System.currentTimeMillis();
+            System.out.printf("  rebuild: %,7dms  ", end - start);
+
+            start = System.currentTimeMillis();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                theTree.writeTo(channel);
+            }
+            end = System.currentTimeMillis();
+            System.out.printf("save: %,7dms  file: %,7.1fMB (%.2f bytes/key)  ", end - start,
+                    Files.size(file) / 1048576.0, (double) Files.size(file) / keys.length);
+
+            theTree = null;
+            start = System.currentTimeMillis();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                theTree = TwoFourTree.readFrom(channel);
+            }
+            end = System.currentTimeMillis();
+            System.out.printf("load: %,7dms  ", end - start);
+
+            int failures = 0;
+            for (int e : strikes) {
+                if (!theTree.hasValue(e)) {
+                    failures++;
+                }
+            }
+            if (failures > 0 || theTree.size() != keys.length) {
+                System.out.printf("(%,d missing, size %,d of %,d)", failures, theTree.size(), keys.length);
+            }
+            System.out.printf("\n");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public static void executeFanoutCase(int listSize, int strikeSize) {
+        System.out.printf("FANOUT: %,8d integers, %,8d finds.  Generating...\n", listSize, strikeSize);
+
+        int[] keys = Work.keys(listSize, KeyDistribution);
+        int[] strikes = Work.strikes(keys, strikeSize, StrikeDistribution);
+
+        long start;
+        long end;
+
+        System.out.printf("  TwoFourTree     ");
+        TwoFourTree theTree = new TwoFourTree();
+        start = System.currentTimeMillis();
+        for (int e : keys) {
+            theTree.addValue(e);
+        }
+        end = System.currentTimeMillis();
+        System.out.printf("add: %,7dms  ", end - start);
+
+        int failures = 0;
+        start = System.nanoTime();
+        for (int e : strikes) {
+            if (!theTree.hasValue(e)) {
+                failures++;
+            }
+        }
+        end = System.nanoTime();
+        System.out.printf("find: %,7dms (%5.1f ns/find)", (end - start) / 1000000, (double) (end - start) / strikes.length);
+        if (failures > 0) {
+            System.out.printf("  (%,d missing)", failures);
+        }
+        System.out.printf("\n");
+        theTree = null;
+
+        for (int keysPerNode : FanoutKeysPerNode) {
+            System.out.printf("  BTree(%2d)       ", keysPerNode);
+            BTree bTree = new BTree(keysPerNode);
+            start = System.currentTimeMillis();
+            for (int e : keys) {
+                bTree.addValue(e);
+            }
+            end = System.currentTimeMillis();
+            System.out.printf("add: %,7dms  ", end - start);
+
+            failures = 0;
+            start = System.nanoTime();
+            for (int e : strikes) {
+                if (!bTree.hasValue(e)) {
+                    failures++;
+                }
+            }
+            end = System.nanoTime();
+            System.out.printf("find: %,7dms (%5.1f ns/find)  height: %d", (end - start) / 1000000,
+                    (double) (end - start) / strikes.length, bTree.height());
+            if (failures > 0 || bTree.size() != keys.length) {
+                System.out.printf("  (%,d missing, size %,d of %,d)", failures, bTree.size(), keys.length);
+            }
+            System.out.printf("\n");
+        }
+    }
+
+    public static void executeFrozenCase(int listSize, int strikeSize) {
+        System.out.printf("FROZEN: %,8d integers, %,8d finds.  Generating...\n", listSize, strikeSize);
+
+        int[] keys = Work.keys(listSize, KeyDistribution);
+        int[] strikes = Work.strikes(keys, strikeSize, StrikeDistribution);
+
+        long start;
+        long end;
+
+        System.out.printf("  TwoFourTree       ");
+        long heapBefore = usedHeap();
+        TwoFourTree theTree = new TwoFourTree();
+        for (int e : keys) {
+            theTree.addValue(e);
+        }
+        long treeHeap = usedHeap() - heapBefore;
+        System.out.printf("heap: %,7.1fMB (%4.1f B/key)  ", treeHeap / 1048576.0, (double) treeHeap / theTree.size());
+
+        start = System.nanoTime();
+        int failures = executeFinds(theTree, strikes);
+        end = System.nanoTime();
+        System.out.printf("find: %,7dms (%5.1f ns/find)\n", (end - start) / 1000000, (double) (end - start) / strikes.length);
+
+        // the frozen tree is one int[], so its size is exact; a heap delta this small
+        // gets lost in whatever the collector happens to free at the same time
+        System.out.printf("  FrozenTwoFourTree ");
+        start = System.currentTimeMillis();
+        FrozenTwoFourTree frozen = theTree.freeze();
+        end = System.currentTimeMillis();
+        System.out.printf("heap: %,7.1fMB (%4.1f B/key)  freeze: %,5dms  ", frozen.bytes() / 1048576.0,
+                (double) frozen.bytes() / frozen.size(), end - start);
+
+        int frozenFailures = 0;
+        start = System.nanoTime();
+        for (int e : strikes) {
+            if (!frozen.hasValue(e)) {
+                frozenFailures++;
+            }
+        }
+        end = System.nanoTime();
+        System.out.printf("find: %,7dms (%5.1f ns/find)", (end - start) / 1000000, (double) (end - start) / strikes.length);
+
+        //the frozen tree has to agree with the tree it came from on finds, floors, ceilings and ranges,
+        //then again with both ends of the int range in it, since Integer.MAX_VALUE is also its padding,
+        //and on an empty tree
+        boolean sizesMatch = frozen.size() == theTree.size();
+        int wrong = checkFrozen(theTree, frozen, strikes);
+        theTree.addValue(Integer.MIN_VALUE);
+        theTree.addValue(Integer.MAX_VALUE);
+        wrong += checkFrozen(theTree, theTree.freeze(), strikes);
+        TwoFourTree emptyTree = new TwoFourTree();
+        wrong += checkFrozen(emptyTree, emptyTree.freeze(), strikes);
+
+        if (frozenFailures != failures || !sizesMatch || wrong > 0) {
+            System.out.printf("  (%,d missing, %,d wrong, size %,d of %,d)", frozenFailures, wrong, frozen.size(),
+                    theTree.size() - 2);
+        }
+        System.out.printf("\n");
+    }
+
+/*
+ * Checks floor, ceiling and forEachInRange on frozen against theTree, the tree it was frozen from,
+ * around a sample of the strikes and at both ends of the tree and of the int range. Returns how
+ * many answers differed.
+ */
+    private static int checkFrozen(TwoFourTree theTree, FrozenTwoFourTree frozen, int[] strikes) {
+        int[] probes = new int[3000 + 8];
+        int count = 0;
+        for (int i = 0; i < strikes.length && count < 3000; i += Math.max(1, strikes.length / 1000)) {
+            probes[count++] = strikes[i] - 1;
+            probes[count++] = strikes[i];
+            probes[count++] = strikes[i] + 1;
+        }
+        probes[count++] = Integer.MIN_VALUE;
+        probes[count++] = Integer.MIN_VALUE + 1;
+        probes[count++] = Integer.MAX_VALUE - 1;
+        probes[count++] = Integer.MAX_VALUE;
+        if (theTree.size() > 0) {
+            probes[count++] = theTree.first() - 1;
+            probes[count++] = theTree.first();
+            probes[count++] = theTree.last();
+            probes[count++] = theTree.last() + 1;
+        }
+
+        int wrong = 0;
+        for (int p = 0; p < count; p++) {
+            int e = probes[p];
+            if (answerOrNone(theTree::floor, e) != answerOrNone(frozen::floor, e)
+                    || answerOrNone(theTree::ceiling, e) != answerOrNone(frozen::ceiling, e)
+                    || theTree.hasValue(e) != frozen.hasValue(e)) {
+                wrong++;
+            }
+        }
+
+        //short, single-value and reversed ranges from the sampled probes, and ranges running off
+        //either end from the end probes, which are few, since those walk most of the tree
+        int ends = count - ((theTree.size() > 0) ? 8 : 4);
+        for (int p = 0; p < count; p += (p < ends) ? 7 : 1) {
+            int lo = probes[p];
+            int[][] bounds = (p < ends)
+                    ? new int[][] { { lo, lo + 1000000 }, { lo, lo }, { lo, lo - 1 } }
+                    : new int[][] { { lo, Integer.MAX_VALUE }, { Integer.MIN_VALUE, lo }, { lo, lo + 1000000 } };
+            for (int[] range : bounds) {
+                long[] expected = { 0, 0 };
+                long[] actual = { 0, 0 };
+                theTree.forEachInRange(range[0], range[1], e -> { expected[0]++; expected[1] = 31 * expected[1] + e; });
+                frozen.forEachInRange(range[0], range[1], e -> { actual[0]++; actual[1] = 31 * actual[1] + e; });
+                if (expected[0] != actual[0] || expected[1] != actual[1]) {
+                    wrong++;
+                }
+            }
+        }
+        return wrong;
+    }
+
+    //the query's answer, or Long.MIN_VALUE where it threw NoSuchElementException
+    private static long answerOrNone(IntUnaryOperator query, int value) {
+        try {
+            return query.applyAsInt(value);
+        } catch (NoSuchElementException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    public static void executeFilterCase(int listSize, int strikeSize) {
+        System.out.printf("FILTER: %,8d integers, %,8d finds.  Generating...\n", listSize, strikeSize);
+
+        int[] keys = Work.keys(listSize, KeyDistribution);
+        int[] strikes = Work.strikes(keys, strikeSize, StrikeDistribution);
+        TwoFourTree theTree = new TwoFourTree();
+        for (int e : keys) {
+            theTree.addValue(e);
+        }
+
+        //draw values until there are enough that aren't in the tree
+        int[] absent = new int[strikes.length];
+        int found = 0;
+        while (found < absent.length) {
+            for (int e : Work.draw(absent.length - found, Workload.KEY_BOUND, Workload.Distribution.UNIFORM)) {
+                if (!theTree.hasValue(e)) {
+                    absent[found++] = e;
+                }
+            }
+        }
+
+        long start;
+        long end;
+
+        for (int percent : FilterMissPercents) {
+            int misses = (int) ((long) strikes.length * percent / 100);
+            int[] probes = new int[strikes.length];
+            System.arraycopy(absent, 0, probes, 0, misses);
+            System.arraycopy(strikes, misses, probes, misses, strikes.length - misses);
+            Work.shuffle(probes);
+
+            theTree.disableFilter();
+            start = System.nanoTime();
+            int plainFound = 0;
+            for (int e : probes) {
+                if (theTree.hasValue(e)) {
+                    plainFound++;
+                }
+            }
+            end = System.nanoTime();
+            double plainNs = (double) (end - start) / probes.length;
+
+            TwoFourTreeFilter filter = theTree.enableFilter();
+            start = System.nanoTime();
+            int filteredFound = 0;
+            for (int e : probes) {
+                if (theTree.hasValue(e)) {
+                    filteredFound++;
+                }
+            }
+            end = System.nanoTime();
+            double filteredNs = (double) (end - start) / probes.length;
+
+            System.out.printf("  %3d%% misses  plain: %6.1f ns/find  filtered: %6.1f ns/find (%.2fx)  fpr: %.3f%%",
+                    percent, plainNs, filteredNs, plainNs / filteredNs, 100 * filter.falsePositiveRate());
+            if (plainFound != filteredFound || plainFound != strikes.length - misses) {
+                System.out.printf("  (found %,d and %,d of %,d)", plainFound, filteredFound, strikes.length - misses);
+            }
+            System.out.printf("\n");
+        }
+
+        //deletes leave stale bits behind until the filter is rebuilt
+        TwoFourTreeFilter filter = theTree.enableFilter();
+        long rebuildsBefore = filter.rebuilds();
+        start = System.currentTimeMillis();
+        for (int i = 0; i < keys.length / 2; i++) {
+            theTree.deleteValue(keys[i]);
+        }
+        end = System.currentTimeMillis();
+        for (int e : absent) {
+            theTree.hasValue(e);
+        }
+        System.out.printf("  deleted %,d: %,7dms  rebuilds: %d  %s\n", keys.length / 2, end - start,
+                filter.rebuilds() - rebuildsBefore, filter);
+    }
+
+    public static void executeCacheCase(int listSize, int strikeSize) {
+        System.out.printf("CACHE: %,8d integers, %,8d finds.  Generating...\n", listSize, strikeSize);
+
+        int[] keys = Work.keys(listSize, KeyDistribution);
+        TwoFourTree theTree = new TwoFourTree();
+        for (int e : keys) {
+            theTree.addValue(e);
+        }
+
+        //raw Zipfian picks, repeats and all, so the hot keys keep coming back
+        int[] lookups = Work.draw(strikeSize, keys.length, Workload.Distribution.ZIPFIAN);
+        for (int i = 0; i < lookups.length; i++) {
+            lookups[i] = keys[lookups[i]];
+        }
+
+        long start;
+        long end;
+
+        start = System.nanoTime();
+        int failures = executeFinds(theTree, lookups);
+        end = System.nanoTime();
+        System.out.printf("  no cache        find: %6.1f ns/find\n", (double) (end - start) / lookups.length);
+
+        for (int capacity : CacheCapacities) {
+            theTree.disableCache();
+            TwoFourTreeCache cache = theTree.enableCache(capacity);
+            start = System.nanoTime();
+            failures += executeFinds(theTree, lookups);
+            end = System.nanoTime();
+            System.out.printf("  cache %,7d   find: %6.1f ns/find  hit ratio: %5.1f%%  evictions: %,d\n", capacity,
+                    (double) (end - start) / lookups.length, 100 * cache.hitRatio(), cache.evictions());
+        }
+
+        //the hottest keys are cached by now, so deleting them has to change the cached answers
+        int hot = Math.min(100, lookups.length);
+        int wrong = 0;
+        for (int i = 0; i < hot; i++) {
+            theTree.deleteValue(lookups[i]);
+        }
+        for (int i = 0; i < hot; i++) {
+            if (theTree.hasValue(lookups[i])) {
+                wrong++;
+            }
+        }
+        for (int i = 0; i < hot; i++) {
+            theTree.addValue(lookups[i]);
+        }
+        for (int i = 0; i < hot; i++) {
+            if (!theTree.hasValue(lookups[i])) {
+                wrong++;
+            }
+        }
+        if (failures > 0 || wrong > 0) {
+            System.out.printf("  (%,d missing, %,d stale answers)\n", failures, wrong);
+        }
+    }
+
+    public static void executeNavigationCase(int listSize, int strikeSize) {
+        System.out.printf("NAVIGATION: %,8d integers, %,8d finds.  Generating...\n", listSize, strikeSize);
+
+        int[] keys = Work.keys(listSize, KeyDistribution);
+        int[] strikes = Work.strikes(keys, strikeSize, StrikeDistribution);
+        TwoFourTree theTree = new TwoFourTree();
+        for (int e : keys) {
+            theTree.addValue(e);
+        }
+
+        long start;
+        long end;
+
+        start = System.nanoTime();
+        int failures = executeFinds(theTree, strikes);
+        end = System.nanoTime();
+        System.out.printf("  find: %6.1f ns  ", (double) (end - start) / strikes.length);
+
+        //the nearest value below one past a key is always the key, and likewise the nearest above one before it
+        int wrong = 0;
+        start = System.nanoTime();
+        for (int e : strikes) {
+            if (theTree.lower(e + 1) != e) {
+                wrong++;
+            }
+        }
+        end = System.nanoTime();
+        System.out.printf("lower: %6.1f ns  ", (double) (end - start) / strikes.length);
+
+        start = System.nanoTime();
+        for (int e : strikes) {
+            if (theTree.higher(e - 1) != e) {
+                wrong++;
+            }
+        }
+        end = System.nanoTime();
+        System.out.printf("higher: %6.1f ns  ", (double) (end - start) / strikes.length);
+
+        //every query against a TreeSet, on the tree and on a pooled copy of it
+        TreeSet<Integer> theComparison = new TreeSet<Integer>();
+        TwoFourTree pooledTree = new TwoFourTree(TwoFourTree.Storage.POOL);
+        for (int e : keys) {
+            theComparison.add(e);
+            pooledTree.addValue(e);
+        }
+        wrong += checkNavigation(theTree, theComparison, strikes);
+        wrong += checkNavigation(pooledTree, theComparison, strikes);
+
+        //drain the tree from both ends, taking turns, as a double-ended priority queue would
+        int[] polled = new int[theTree.size()];
+        int drained = 0;
+        start = System.currentTimeMillis();
+        while (theTree.size() > 0) {
+            polled[drained] = ((drained & 1) == 0) ? theTree.pollFirst() : theTree.pollLast();
+            drained++;
+        }
+        end = System.currentTimeMillis();
+        System.out.printf("drain: %,7dms", end - start);
+
+        for (int i = 0; i < drained; i++) {
+            int expected = ((i & 1) == 0) ? theComparison.pollFirst() : theComparison.pollLast();
+            int pooled = ((i & 1) == 0) ? pooledTree.pollFirst() : pooledTree.pollLast();
+            if (polled[i] != expected || pooled != expected) {
+                wrong++;
+            }
+        }
+
+        //and once more on the trees the drain left empty
+        wrong += checkNavigation(theTree, theComparison, strikes);
+        wrong += checkNavigation(pooledTree, theComparison, strikes);
+
+        if (failures > 0 || wrong > 0 || drained != keys.length) {
+            System.out.printf("  (%,d missing, %,d wrong, %,d of %,d drained)", failures, wrong, drained,
+                    keys.length);
+        }
+        System.out.printf("\n");
+    }
+
+/*
+ * Checks floor, lower, ceiling, higher, first and last on theTree against theComparison, which
+ * holds the same values. The queries go on either side of a sample of the strikes, at random
+ * values that are mostly absent, and past both ends of the tree and of the int range. On an
+ * empty tree, every one of them, pollFirst and pollLast included, has to throw. Returns how many
+ * answers differed.
+ */
+    private static int checkNavigation(TwoFourTree theTree, TreeSet<Integer> theComparison, int[] strikes) {
+        int[] probes = new int[4000 + 8];
+        int count = 0;
+        for (int i = 0; i < strikes.length && count < 4000; i += Math.max(1, strikes.length / 1000)) {
+            probes[count++] = strikes[i] - 1;
+            probes[count++] = strikes[i];
+            probes[count++] = strikes[i] + 1;
+            probes[count++] = RandomGenerator.nextInt();
+        }
+        probes[count++] = Integer.MIN_VALUE;
+        probes[count++] = Integer.MIN_VALUE + 1;
+        probes[count++] = Integer.MAX_VALUE - 1;
+        probes[count++] = Integer.MAX_VALUE;
+        if (!theComparison.isEmpty()) {
+            probes[count++] = theComparison.first() - 1;
+            probes[count++] = theComparison.first();
+            probes[count++] = theComparison.last();
+            probes[count++] = theComparison.last() + 1;
+        }
+
+        int wrong = 0;
+        for (int p = 0; p < count; p++) {
+            int e = probes[p];
+            if (answerOrNone(theTree::floor, e) != orNone(theComparison.floor(e))
+                    || answerOrNone(theTree::lower, e) != orNone(theComparison.lower(e))
+                    || answerOrNone(theTree::ceiling, e) != orNone(theComparison.ceiling(e))
+                    || answerOrNone(theTree::higher, e) != orNone(theComparison.higher(e))) {
+                wrong++;
+            }
+        }
+
+        if (answerOrNone(e -> theTree.first(), 0) != answerOrNone(e -> theComparison.first(), 0)
+                || answerOrNone(e -> theTree.last(), 0) != answerOrNone(e -> theComparison.last(), 0)) {
+            wrong++;
+        }
+        if (theComparison.isEmpty() && (answerOrNone(e -> theTree.pollFirst(), 0) != Long.MIN_VALUE
+                || answerOrNone(e -> theTree.pollLast(), 0) != Long.MIN_VALUE)) {
+            wrong++;
+        }
+        return wrong;
+    }
+
+    //a TreeSet's answer in the form answerOrNone gives it, with Long.MIN_VALUE for none
+    private static long orNone(Integer value) {
+        return (value == null) ? Long.MIN_VALUE : value;
+    }
+
+    public static void executeDurableCase(int listSize) throws Exception {
+        System.out.printf("DURABLE: %,8d integers, %,dus commit delay.  Generating...\n", listSize, DurableDelayMicros);
+
+        int[] keys = Work.keys(listSize, KeyDistribution);
+        Path dir = Files.createTempDirectory("TwoFourTree");
+        Path log = dir.resolve("tree.log");
+        Path snapshot = dir.resolve("tree.snap");
+
+        try {
+            for (int threads : DurableThreads) {
+                Files.deleteIfExists(log);
+                Files.deleteIfExists(snapshot);
+
+                DurableTwoFourTree durable = new DurableTwoFourTree(log, snapshot, DurableDelayMicros);
+                Thread[] workers = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    int first = t;
+                    workers[t] = new Thread(() -> {
+                        for (int i = first; i < keys.length; i += threads) {
+                            durable.addValue(keys[i]);
+                        }
+                    });
+                }
+                long start = System.nanoTime();
+                for (Thread worker : workers) {
+                    worker.start();
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                long nanos = System.nanoTime() - start;
+                System.out.printf("  %2d threads  add: %,8d ops/s  %,7d commits (%,.1f changes each)  log: %,6.1fMB",
+                        threads, keys.length * 1000000000L / Math.max(nanos, 1), durable.commits(),
+                        (double) durable.loggedChanges() / Math.max(durable.commits(), 1), Files.size(log) / 1048576.0);
+                durable.close();
+
+                start = System.currentTimeMillis();
+                DurableTwoFourTree reopened = new DurableTwoFourTree(log, snapshot, DurableDelayMicros);
+                long end = System.currentTimeMillis();
+                System.out.printf("  replay: %,6dms", end - start);
+                if (reopened.size() != keys.length) {
+                    System.out.printf(" (size %,d of %,d)", reopened.size(), keys.length);
+                }
+
+                start = System.currentTimeMillis();
+                reopened.checkpoint();
+                end = System.currentTimeMillis();
+                System.out.printf("  checkpoint: %,6dms", end - start);
+                reopened.close();
+
+                start = System.currentTimeMillis();
+                reopened = new DurableTwoFourTree(log, snapshot, DurableDelayMicros);
+                end = System.currentTimeMillis();
+                System.out.printf("  reload: %,6dms", end - start);
+                if (reopened.size() != keys.length) {
+                    System.out.printf(" (size %,d of %,d)", reopened.size(), keys.length);
+                }
+                reopened.close();
+                System.out.printf("\n");
+            }
+        } finally {
+            Files.deleteIfExists(log);
+            Files.deleteIfExists(snapshot);
+            Files.deleteIfExists(dir);
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         if (ShouldBeRandom)
             RandomGenerator = new Random();
+        Work = new Workload((WorkloadSeed != 0) ? WorkloadSeed : RandomGenerator.nextLong(), ShouldShuffle);
+        System.out.printf("Workload seed: %d\n", Work.seed());
         List<Integer> primeList = Arrays.asList(
                 new Integer[] { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43,
                         47, 53, 59, 67, 71, 73, 79, 83, 89, 97 });
@@ -310,5 +1538,102 @@ public class App {
             executeIntCase(1000000, 200000, RunDeleteCases && RunLargeDeleteCases);
             executeIntCase(10000000, 2000000, RunDeleteCases && RunLargeDeleteCases);
         }
+
+        if (RunOrderStatisticsCases) {
+            executeOrderStatisticsCase(1000, 200);
+            executeOrderStatisticsCase(100000, 20000);
+            if (RunLargeCases) {
+                executeOrderStatisticsCase(1000000, 200000);
+            }
+        }
+
+        if (RunBatchUpdateCases) {
+            executeBatchUpdateCase(1000);
+            executeBatchUpdateCase(100000);
+            if (RunLargeCases) {
+                executeBatchUpdateCase(1000000);
+            }
+        }
+
+        if (RunConcurrentCases) {
+            executeConcurrentCase(100000, 2000000);
+            if (RunLargeCases) {
+                executeConcurrentCase(1000000, 4000000);
+            }
+        }
+
+        if (RunReadStressCases) {
+            executeReadStressCase(100000);
+        }
+
+        if (RunMappedCases) {
+            executeMappedCase(100000, 20000);
+            if (RunLargeCases) {
+                executeMappedCase(1000000, 200000);
+                executeMappedCase(10000000, 2000000);
+            }
+        }
+
+        if (RunCheckpointCases) {
+            executeCheckpointCase(100000, 20000);
+            if (RunLargeCases) {
+                executeCheckpointCase(1000000, 200000);
+                executeCheckpointCase(10000000, 2000000);
+            }
+        }
+
+        if (RunDurableCases) {
+            executeDurableCase(100000);
+            if (RunLargeCases) {
+                executeDurableCase(1000000);
+            }
+        }
+
+        if (RunFanoutCases) {
+            executeFanoutCase(100000, 20000);
+            if (RunLargeCases) {
+                executeFanoutCase(1000000, 200000);
+                executeFanoutCase(10000000, 2000000);
+            }
+        }
+
+        if (RunFrozenCases) {
+            executeFrozenCase(100000, 20000);
+            if (RunLargeCases) {
+                executeFrozenCase(1000000, 200000);
+                executeFrozenCase(10000000, 2000000);
+            }
+        }
+
+        if (RunFilterCases) {
+            executeFilterCase(100000, 200000);
+            if (RunLargeCases) {
+                executeFilterCase(1000000, 2000000);
+                executeFilterCase(10000000, 2000000);
+            }
+        }
+
+        if (RunCacheCases) {
+            executeCacheCase(100000, 2000000);
+            if (RunLargeCases) {
+                executeCacheCase(1000000, 2000000);
+                executeCacheCase(10000000, 2000000);
+            }
+        }
+
+        if (RunNavigationCases) {
+            executeNavigationCase(100000, 20000);
+            if (RunLargeCases) {
+                executeNavigationCase(1000000, 200000);
+                executeNavigationCase(10000000, 2000000);
+            }
+        }
+
+        if (RunSnapshotCases) {
+            executeSnapshotCase(100000);
+            if (RunLargeCases) {
+                executeSnapshotCase(1000000);
+            }
+        }
     }
 }
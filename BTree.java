@@ -0,0 +1,369 @@
+import java.util.Arrays;
+
+/*
+ * A B-tree of ints with the same addValue/hasValue/deleteValue contract as TwoFourTree, but with
+ * the number of keys per node picked at construction. A TwoFourTree is the case of 3 keys per
+ * node; with 16, 32 or 64 the keys of a node fill one to four 64-byte cache lines, the tree is a
+ * handful of levels deep even at 10 million keys, and a lookup misses the cache far less often.
+ *
+ * The algorithms are the top-down ones from TwoFourTree, generalized to any node size: addValue
+ * splits full nodes before stepping into them, and deleteValue gives every node it steps into a
+ * key to spare by rotating from or merging with a sibling first, so no change ever has to travel
+ * back up. Every node but the root holds between minKeys = (maxKeys - 1) / 2 and maxKeys keys,
+ * which is what lets a split always produce two legal halves and a merge always fit in one node.
+ *
+ * Each node keeps its keys sorted in one int[] and is searched with a binary search. A node is a
+ * leaf iff it has no children array.
+ */
+public class BTree {
+    private static final class Node {
+        int count = 0;
+        final int[] keys;
+        Node[] children;                            // null iff the node is a leaf.
+
+        Node(int maxKeys, boolean leaf) {
+            keys = new int[maxKeys];
+            children = leaf ? null : new Node[maxKeys + 1];
+        }
+
+        boolean isLeaf() {
+            return children == null;
+        }
+
+        //returns the index of the first key that isn't below the value, or count if they all are.
+        //it's also the index of the child to follow when the value isn't in the node.
+        int indexFor(int value) {
+            int low = 0;
+            int high = count;
+            while(low < high){
+                int middle = (low + high) >>> 1;
+                if(keys[middle] < value) low = middle + 1;
+                else high = middle;
+            }
+            return low;
+        }
+    }
+
+    private final int maxKeys;
+    private final int minKeys;
+    private Node root = null;
+    private int size = 0;
+
+/*
+ * This is the constructor. It takes the most keys a node may hold, which must be at least 3.
+ * The fanout of the tree is one more than that.
+ */
+    public BTree(int maxKeys) {
+        if(maxKeys < 3){
+            throw new IllegalArgumentException("A BTree node needs room for at least 3 keys");
+        }
+        this.maxKeys = maxKeys;
+        this.minKeys = (maxKeys - 1) / 2;
+    }
+
+/* Takes an int and inserts it into the tree. Full nodes are split on the way down,
+ * so the value can always be placed once a leaf is reached.
+ * It returns true if the value was added and false if it was already in the tree.
+ */
+    public boolean addValue(int value) {
+
+        //if tree is empty we simply create the first node
+        if(root == null){
+            root = new Node(maxKeys, true);
+            root.keys[0] = value;
+            root.count = 1;
+            size++;
+            return true;
+        }
+
+        //a full root is split first, which is the only way the tree grows taller
+        if(root.count == maxKeys){
+            if(holds(root, value)) return false;
+
+            Node oldRoot = root;
+            root = new Node(maxKeys, false);
+            root.children[0] = oldRoot;
+            splitChild(root, 0);
+        }
+
+        Node walker = root;
+
+        while(true){
+            int i = walker.indexFor(value);
+            if(i < walker.count && walker.keys[i] == value) return false;
+
+            //a leaf here is never full, so shift the larger keys over and place the value
+            if(walker.isLeaf()){
+                System.arraycopy(walker.keys, i, walker.keys, i + 1, walker.count - i);
+                walker.keys[i] = value;
+                walker.count++;
+                size++;
+                return true;
+            }
+
+            Node child = walker.children[i];
+
+            //split full children before we step into them
+            if(child.count == maxKeys){
+                if(holds(child, value)) return false;
+
+                splitChild(walker, i);
+                if(value > walker.keys[i]) i++;
+                child = walker.children[i];
+            }
+
+            walker = child;
+        }
+    }
+
+/* This method checks to see if the tree has a certain value. Takes an int.
+ * It returns true if the value is in the tree and false otherwise.
+ */
+    public boolean hasValue(int value) {
+        Node walker = root;
+
+        while(walker != null){
+            int i = walker.indexFor(value);
+            if(i < walker.count && walker.keys[i] == value) return true;
+
+            walker = walker.isLeaf() ? null : walker.children[i];
+        }
+
+        return false;
+    }
+
+/* This method removes a value from the tree. It takes an int.
+ * It returns true if the value was removed and false otherwise. Every node we step into
+ * is first given a key to spare by rotating from or merging with a sibling, so the removal
+ * at the bottom never has to travel back up.
+ */
+    public boolean deleteValue(int value) {
+        Node walker = root;
+
+        while(walker != null){
+            int i = walker.indexFor(value);
+
+            if(i < walker.count && walker.keys[i] == value){
+
+                //at a leaf we can simply drop the key
+                if(walker.isLeaf()){
+                    removeKey(walker, i);
+                    //only the root leaf can run empty
+                    if(walker.count == 0) root = null;
+                    size--;
+                    return true;
+                }
+
+                Node left = walker.children[i];
+                Node right = walker.children[i + 1];
+
+                //replace the value with its predecessor or successor if a child can spare one
+                if(left.count > minKeys){
+                    walker.keys[i] = removeLast(left);
+                    size--;
+                    return true;
+                }
+                if(right.count > minKeys){
+                    walker.keys[i] = removeFirst(right);
+                    size--;
+                    return true;
+                }
+
+                //otherwise pull the value down between its two children and continue there
+                walker = mergeChildren(walker, i);
+                continue;
+            }
+
+            if(walker.isLeaf()) return false;
+
+            walker = fixChild(walker, i);
+        }
+
+        return false;
+    }
+
+/* Returns the number of values in the tree. */
+    public int size() {
+        return size;
+    }
+
+/* Returns the most keys a node may hold. */
+    public int maxKeys() {
+        return maxKeys;
+    }
+
+/* Returns the number of levels in the tree, which is 0 for an empty tree. */
+    public int height() {
+        int height = 0;
+        for(Node node = root; node != null; node = node.isLeaf() ? null : node.children[0]){
+            height++;
+        }
+        return height;
+    }
+
+/*
+ * This method prints the tree starting at the root, indenting each level like
+ * TwoFourTree.printInOrder. It will do nothing if root is null.
+ */
+    public void printInOrder() {
+        if(root != null) printInOrder(root, 0);
+    }
+
+    private void printInOrder(Node node, int indent) {
+        for(int i = 0; i <= node.count; i++){
+            if(!node.isLeaf()) printInOrder(node.children[i], indent + 1);
+            if(i == node.count) break;
+            for(int j = 0; j < indent; j++) System.out.printf("  ");
+            System.out.printf("%d\n", node.keys[i]);
+        }
+    }
+
+/*
+ * Splits the full child at index i of parent around its middle key, which moves up into parent.
+ * The full child keeps the lower half and a new node takes the upper half. The parent must not
+ * be full.
+ */
+    private void splitChild(Node parent, int i) {
+        Node full = parent.children[i];
+        int middle = maxKeys / 2;
+        int moved = maxKeys - middle - 1;
+
+        //the right half takes the keys and children above the middle
+        Node sibling = new Node(maxKeys, full.isLeaf());
+        System.arraycopy(full.keys, middle + 1, sibling.keys, 0, moved);
+        if(!full.isLeaf()){
+            System.arraycopy(full.children, middle + 1, sibling.children, 0, moved + 1);
+            Arrays.fill(full.children, middle + 1, maxKeys + 1, null);
+        }
+        sibling.count = moved;
+        full.count = middle;
+
+        //make room in the parent for the middle key and the new child
+        System.arraycopy(parent.keys, i, parent.keys, i + 1, parent.count - i);
+        System.arraycopy(parent.children, i + 1, parent.children, i + 2, parent.count - i);
+        parent.keys[i] = full.keys[middle];
+        parent.children[i + 1] = sibling;
+        parent.count++;
+    }
+
+/*
+ * Makes sure the child at index i of parent has a key to spare before we step into it,
+ * rotating from a sibling that has one and merging with a sibling otherwise.
+ * It returns the node to continue the descent at.
+ */
+    private Node fixChild(Node parent, int i) {
+        Node child = parent.children[i];
+        if(child.count > minKeys) return child;
+
+        Node leftSibling = (i > 0) ? parent.children[i - 1] : null;
+        Node rightSibling = (i < parent.count) ? parent.children[i + 1] : null;
+
+        if(leftSibling != null && leftSibling.count > minKeys){
+            rotateRight(parent, i - 1);
+            return child;
+        }
+        if(rightSibling != null && rightSibling.count > minKeys){
+            rotateLeft(parent, i);
+            return child;
+        }
+        if(rightSibling != null){
+            return mergeChildren(parent, i);
+        }
+        return mergeChildren(parent, i - 1);
+    }
+
+/* Moves the separator at index i of parent down into its right child, and the largest key of
+ * the left child up to replace it. The left child's rightmost subtree moves across with it. */
+    private void rotateRight(Node parent, int i) {
+        Node left = parent.children[i];
+        Node right = parent.children[i + 1];
+
+        System.arraycopy(right.keys, 0, right.keys, 1, right.count);
+        right.keys[0] = parent.keys[i];
+        if(!right.isLeaf()){
+            System.arraycopy(right.children, 0, right.children, 1, right.count + 1);
+            right.children[0] = left.children[left.count];
+            left.children[left.count] = null;
+        }
+        right.count++;
+
+        parent.keys[i] = left.keys[left.count - 1];
+        left.count--;
+    }
+
+/* Moves the separator at index i of parent down into its left child, and the smallest key of
+ * the right child up to replace it. The right child's leftmost subtree moves across with it. */
+    private void rotateLeft(Node parent, int i) {
+        Node left = parent.children[i];
+        Node right = parent.children[i + 1];
+
+        left.keys[left.count] = parent.keys[i];
+        if(!left.isLeaf()){
+            left.children[left.count + 1] = right.children[0];
+            System.arraycopy(right.children, 1, right.children, 0, right.count);
+            right.children[right.count] = null;
+        }
+        left.count++;
+
+        parent.keys[i] = right.keys[0];
+        System.arraycopy(right.keys, 1, right.keys, 0, right.count - 1);
+        right.count--;
+    }
+
+/*
+ * Merges the children at index i and i + 1 of parent, which both hold minKeys keys, with the
+ * separator between them into the left child. A root left without keys is replaced by the
+ * merged node. It returns the merged node.
+ */
+    private Node mergeChildren(Node parent, int i) {
+        Node left = parent.children[i];
+        Node right = parent.children[i + 1];
+
+        left.keys[left.count] = parent.keys[i];
+        System.arraycopy(right.keys, 0, left.keys, left.count + 1, right.count);
+        if(!left.isLeaf()){
+            System.arraycopy(right.children, 0, left.children, left.count + 1, right.count + 1);
+        }
+        left.count += right.count + 1;
+
+        //close the gap in the parent
+        System.arraycopy(parent.keys, i + 1, parent.keys, i, parent.count - i - 1);
+        System.arraycopy(parent.children, i + 2, parent.children, i + 1, parent.count - i - 1);
+        parent.children[parent.count] = null;
+        parent.count--;
+
+        //the root ran out of keys, so the tree gets one level shorter
+        if(parent.count == 0) root = left;
+
+        return left;
+    }
+
+/* Removes and returns the largest key in the subtree at node, which must have a key to spare. */
+    private int removeLast(Node node) {
+        while(!node.isLeaf()){
+            node = fixChild(node, node.count);
+        }
+        node.count--;
+        return node.keys[node.count];
+    }
+
+/* Removes and returns the smallest key in the subtree at node, which must have a key to spare. */
+    private int removeFirst(Node node) {
+        while(!node.isLeaf()){
+            node = fixChild(node, 0);
+        }
+        int value = node.keys[0];
+        removeKey(node, 0);
+        return value;
+    }
+
+    private void removeKey(Node node, int i) {
+        System.arraycopy(node.keys, i + 1, node.keys, i, node.count - i - 1);
+        node.count--;
+    }
+
+    private static boolean holds(Node node, int value) {
+        int i = node.indexFor(value);
+        return i < node.count && node.keys[i] == value;
+    }
+}
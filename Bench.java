@@ -0,0 +1,346 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/*
+ * Micro-benchmarks for TwoFourTree, with java.util.TreeSet as the baseline.
+ *
+ * Run it with: java Bench [-impls TwoFourTree,TreeSet] [-ops add,hit,miss,zipf,delete,mixed]
+ *                         [-sizes 100,1000,...] [-forks 2] [-warmups 3] [-iterations 5] [-millis 500]
+ *
+ * Every impl/op/size combination runs in its own fresh JVM (a fork), so JIT profiles and heap
+ * state from one benchmark can't leak into the next. Inside a fork, each iteration repeats the
+ * operation until at least millis have passed; warmup iterations are run and thrown away before
+ * the measured ones. Setup, like filling the tree a delete benchmark deletes from, is never timed.
+ * All keys are primitive ints, so the numbers are the tree's and not the boxing's.
+ *
+ * For each combination it prints the mean ns/op with its standard deviation over every measured
+ * iteration of every fork, the throughput, and the bytes allocated per op and per second by the
+ * benchmark thread. With -forks 0 everything runs in this JVM, which is only useful for debugging.
+ */
+public class Bench {
+    /*
+     * The operations that are benchmarked, all on a tree of `size` keys:
+     * add     adds the keys to an empty tree, one op per key.
+     * hit     looks up keys that are in the tree.
+     * miss    looks up keys that are not in the tree.
+     * zipf    looks up keys that are in the tree, picked with a Zipfian distribution so a few hot
+     *         keys are looked up over and over.
+     * delete  deletes every key from a full tree, one op per key.
+     * mixed   90% hits, 5% adds and 5% deletes of keys outside the tree, so its size stays put.
+     */
+    static final String[] OPS = { "add", "hit", "miss", "zipf", "delete", "mixed" };
+    //TwoFourTree+metrics, a TwoFourTree with metrics switched on, and BTree<n>, a BTree with n keys
+    //per node (BTree16, BTree64, ...), can also be asked for with -impls. So can TwoFourTree+filter
+    //and TwoFourTree+cache, which have their Bloom filter or hot-key cache switched on, and
+    //TwoFourTree+branchy, whose fork is started with TwoFourTree.branchlessSearch off; that one
+    //needs -forks 1 or more.
+    static final String[] IMPLS = { "TwoFourTree", "TreeSet" };
+    static final int[] SIZES = { 100, 1000, 10000, 100000, 1000000, 10000000 };
+
+    //lookups and mixed ops run in rounds of at least this many ops, so small trees aren't all timer overhead.
+    private static final int MIN_ROUND = 100000;
+
+    //every result is folded in here, so the JIT can't drop an operation whose result nobody uses.
+    static volatile int sink;
+
+    /* The three operations every benchmarked set needs. */
+    interface Subject {
+        boolean add(int value);
+        boolean has(int value);
+        boolean delete(int value);
+    }
+
+    static Subject newSubject(String impl) {
+        if(impl.equals("TwoFourTree") || impl.equals("TwoFourTree+metrics") || impl.equals("TwoFourTree+branchy")
+                || impl.equals("TwoFourTree+filter") || impl.equals("TwoFourTree+cache")){
+            TwoFourTree tree = new TwoFourTree();
+            if(impl.endsWith("+metrics")) tree.enableMetrics();
+            if(impl.endsWith("+filter")) tree.enableFilter();
+            if(impl.endsWith("+cache")) tree.enableCache();
+            return new Subject() {
+                public boolean add(int value) { return tree.addValue(value); }
+                public boolean has(int value) { return tree.hasValue(value); }
+                public boolean delete(int value) { return tree.deleteValue(value); }
+            };
+        }
+        if(impl.startsWith("BTree")){
+            BTree tree = new BTree(Integer.parseInt(impl.substring("BTree".length())));
+            return new Subject() {
+                public boolean add(int value) { return tree.addValue(value); }
+                public boolean has(int value) { return tree.hasValue(value); }
+                public boolean delete(int value) { return tree.deleteValue(value); }
+            };
+        }
+        if(impl.equals("TreeSet")){
+            TreeSet<Integer> set = new TreeSet<>();
+            return new Subject() {
+                public boolean add(int value) { return set.add(value); }
+                public boolean has(int value) { return set.contains(value); }
+                public boolean delete(int value) { return set.remove(value); }
+            };
+        }
+        throw new IllegalArgumentException("Unknown impl " + impl);
+    }
+
+/*
+ * The keys of one benchmark: `size` distinct even keys in random order, which is what goes in
+ * the tree, and the same number of odd keys, which never do. The seed is fixed so every fork
+ * of a benchmark sees the same tree.
+ */
+    static final class Keys {
+        final int[] present;
+        final int[] absent;
+
+        Keys(int size) {
+            Random random = new Random(size);
+            present = new int[size];
+            absent = new int[size];
+            for(int i = 0; i < size; i++){
+                present[i] = 2 * i;
+                absent[i] = 2 * i + 1;
+            }
+            shuffle(present, random);
+            shuffle(absent, random);
+        }
+
+        //returns howMany of the present keys, picked with a Zipfian distribution over their shuffled order.
+        int[] zipfian(int howMany) {
+            int[] picks = new Workload(present.length).draw(howMany, present.length, Workload.Distribution.ZIPFIAN);
+            for(int i = 0; i < howMany; i++){
+                picks[i] = present[picks[i]];
+            }
+            return picks;
+        }
+
+        private static void shuffle(int[] keys, Random random) {
+            for(int i = keys.length - 1; i > 0; i--){
+                int j = random.nextInt(i + 1);
+                int swap = keys[i];
+                keys[i] = keys[j];
+                keys[j] = swap;
+            }
+        }
+    }
+
+/*
+ * One benchmark in one JVM. round() runs a timed round of operations and returns how many it ran;
+ * setUp() prepares the next round outside the timing.
+ */
+    static final class Benchmark {
+        private final String impl;
+        private final String op;
+        private final Keys keys;
+        private final int[] hot;                    // the zipf op's lookups, null for the other ops.
+        private Subject subject;
+        private int cursor = 0;
+
+        Benchmark(String impl, String op, int size) {
+            this.impl = impl;
+            this.op = op;
+            this.keys = new Keys(size);
+            this.hot = op.equals("zipf") ? keys.zipfian(Math.max(size, MIN_ROUND)) : null;
+            if(!Arrays.asList(OPS).contains(op)) throw new IllegalArgumentException("Unknown op " + op);
+        }
+
+        void setUp() {
+            //add starts from an empty tree, the others from a full one that they leave full
+            if(subject == null || op.equals("add") || op.equals("delete")){
+                subject = newSubject(impl);
+                if(!op.equals("add")){
+                    for(int key : keys.present) subject.add(key);
+                }
+            }
+        }
+
+        int round() {
+            int[] present = keys.present;
+            int[] absent = keys.absent;
+            int n = present.length;
+            int acc = 0;
+
+            switch(op){
+                case "add":
+                    for(int key : present) acc += subject.add(key) ? 1 : 0;
+                    sink = acc;
+                    return n;
+                case "delete":
+                    for(int key : present) acc += subject.delete(key) ? 1 : 0;
+                    sink = acc;
+                    return n;
+                case "hit":
+                case "miss":
+                case "zipf": {
+                    int[] source = op.equals("hit") ? present : op.equals("miss") ? absent : hot;
+                    int ops = Math.max(n, MIN_ROUND);
+                    int at = cursor;
+                    for(int i = 0; i < ops; i++){
+                        acc += subject.has(source[at]) ? 1 : 0;
+                        if(++at == source.length) at = 0;
+                    }
+                    cursor = at;
+                    sink = acc;
+                    return ops;
+                }
+                default: {
+                    //every 20 ops: 18 hits, then an absent key added and the same key deleted again
+                    int ops = Math.max(n, MIN_ROUND) / 20 * 20;
+                    int at = cursor;
+                    for(int i = 0; i < ops; i += 20){
+                        for(int j = 0; j < 18; j++){
+                            acc += subject.has(present[at]) ? 1 : 0;
+                            if(++at == n) at = 0;
+                        }
+                        int churn = absent[at];
+                        acc += subject.add(churn) ? 1 : 0;
+                        acc += subject.delete(churn) ? 1 : 0;
+                    }
+                    cursor = at;
+                    sink = acc;
+                    return ops;
+                }
+            }
+        }
+    }
+
+/*
+ * Runs warmups and then iterations of the benchmark in this JVM. Each iteration keeps calling
+ * round() until millis have passed and yields one { ns/op, bytes/op } pair.
+ */
+    static List<double[]> runHere(String impl, String op, int size, int warmups, int iterations, int millis) {
+        Benchmark benchmark = new Benchmark(impl, op, size);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        List<double[]> results = new ArrayList<>();
+
+        for(int iteration = 0; iteration < warmups + iterations; iteration++){
+            long ops = 0;
+            long nanos = 0;
+            long bytes = 0;
+            while(nanos < millis * 1000000L){
+                benchmark.setUp();
+                long bytesBefore = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                ops += benchmark.round();
+                nanos += System.nanoTime() - start;
+                bytes += threads.getThreadAllocatedBytes(thread) - bytesBefore;
+            }
+            if(iteration >= warmups){
+                results.add(new double[] { (double) nanos / ops, (double) bytes / ops });
+            }
+        }
+        return results;
+    }
+
+/* Runs the benchmark in a fresh JVM with the same class path and heap settings, and collects what it prints. */
+    static List<double[]> runForked(String impl, String op, int size, int warmups, int iterations, int millis)
+            throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        if(impl.endsWith("+branchy")) command.add("-DTwoFourTree.branchlessSearch=false");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Bench");
+        command.add("-fork");
+        command.addAll(Arrays.asList(impl, op, Integer.toString(size), Integer.toString(warmups),
+                Integer.toString(iterations), Integer.toString(millis)));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        List<double[]> results = new ArrayList<>();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))){
+            String line;
+            while((line = reader.readLine()) != null){
+                if(line.startsWith("RESULT ")){
+                    String[] fields = line.split(" ");
+                    results.add(new double[] { Double.parseDouble(fields[1]), Double.parseDouble(fields[2]) });
+                }
+                else{
+                    System.out.println(line);
+                }
+            }
+        }
+        if(process.waitFor() != 0){
+            throw new IllegalStateException("Fork for " + impl + " " + op + " " + size + " failed");
+        }
+        return results;
+    }
+
+    private static int[] parseInts(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    public static void main(String[] args) throws Exception {
+        //a fork runs one benchmark and reports each measured iteration on its own line
+        if(args.length > 0 && args[0].equals("-fork")){
+            List<double[]> results = runHere(args[1], args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                    Integer.parseInt(args[5]), Integer.parseInt(args[6]));
+            for(double[] result : results){
+                System.out.println("RESULT " + result[0] + " " + result[1]);
+            }
+            return;
+        }
+
+        String[] impls = IMPLS;
+        String[] ops = OPS;
+        int[] sizes = SIZES;
+        int forks = 2;
+        int warmups = 3;
+        int iterations = 5;
+        int millis = 500;
+
+        for(int i = 0; i + 1 < args.length; i += 2){
+            switch(args[i]){
+                case "-impls": impls = args[i + 1].split(","); break;
+                case "-ops": ops = args[i + 1].split(","); break;
+                case "-sizes": sizes = parseInts(args[i + 1]); break;
+                case "-forks": forks = Integer.parseInt(args[i + 1]); break;
+                case "-warmups": warmups = Integer.parseInt(args[i + 1]); break;
+                case "-iterations": iterations = Integer.parseInt(args[i + 1]); break;
+                case "-millis": millis = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        System.out.printf("%-8s %10s  %-20s %12s %10s %14s %10s %12s\n", "op", "size", "impl", "ns/op", "+-",
+                "ops/s", "B/op", "MB/s alloc");
+
+        for(String op : ops){
+            for(int size : sizes){
+                for(String impl : impls){
+                    List<double[]> results = new ArrayList<>();
+                    if(forks == 0){
+                        results.addAll(runHere(impl, op, size, warmups, iterations, millis));
+                    }
+                    for(int fork = 0; fork < forks; fork++){
+                        results.addAll(runForked(impl, op, size, warmups, iterations, millis));
+                    }
+
+                    double mean = 0;
+                    double bytes = 0;
+                    for(double[] result : results){
+                        mean += result[0];
+                        bytes += result[1];
+                    }
+                    mean /= results.size();
+                    bytes /= results.size();
+
+                    double variance = 0;
+                    for(double[] result : results){
+                        variance += (result[0] - mean) * (result[0] - mean);
+                    }
+                    double deviation = Math.sqrt(variance / Math.max(1, results.size() - 1));
+
+                    System.out.printf("%-8s %,10d  %-20s %12.1f %10.1f %,14.0f %10.1f %12.1f\n", op, size, impl, mean,
+                            deviation, 1e9 / mean, bytes, bytes / mean * 1e9 / 1048576.0);
+                }
+            }
+        }
+    }
+}
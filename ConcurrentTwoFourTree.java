@@ -0,0 +1,640 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/*
+ * A thread-safe 2-3-4 tree with the same addValue/hasValue/deleteValue contract as TwoFourTree.
+ *
+ * Every node has its own read/write lock, and all operations use hand-over-hand lock coupling:
+ * the child's lock is taken before the parent's is let go, always top-down, so threads can't
+ * deadlock and can't overtake each other on a path. This works because the algorithms are the
+ * top-down ones from TwoFourTree: addValue splits full nodes before stepping into them and
+ * deleteValue rotates or merges 2-nodes before stepping into them, so no change ever has to
+ * travel back up to a node whose lock was already released.
+ *
+ * Writers first try an optimistic pass that read-couples down to the leaf and only write-locks
+ * the leaf itself, which is enough whenever the leaf can take the change on its own. Only when
+ * a split, rotation or merge is needed do they start over with write locks from the root.
+ *
+ * Readers never lock and never block. Every node also carries a version stamp that writers hold
+ * while they change the node, so hasValue reads each node optimistically: it notes the node's
+ * stamp, reads the keys, notes the child's stamp, and only moves on once the node's stamp is
+ * still valid. If any stamp changed during the descent the read starts over from the root.
+ */
+public class ConcurrentTwoFourTree {
+    private static final class Node {
+        int values = 0;
+        final int[] keys = new int[3];
+        final Node[] children = new Node[4];
+        final boolean isLeaf;                       // a node never changes level, so this never changes.
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final StampedLock version = new StampedLock();   // held by writers only while the fields change.
+
+        Node(boolean isLeaf) {
+            this.isLeaf = isLeaf;
+        }
+
+        //returns the index of the first key that isn't below the value.
+        int indexFor(int value) {
+            int i = 0;
+            while(i < values && keys[i] < value) i++;
+            return i;
+        }
+
+        boolean holds(int value, int i) {
+            return i < values && keys[i] == value;
+        }
+
+        void readLock() {
+            lock.readLock().lock();
+        }
+
+        void readUnlock() {
+            lock.readLock().unlock();
+        }
+
+        void writeLock() {
+            lock.writeLock().lock();
+        }
+
+        void writeUnlock() {
+            lock.writeLock().unlock();
+        }
+
+        //writers already hold the node's write lock, so these never wait on anything but readers' stamps.
+        long beginChange() {
+            return version.writeLock();
+        }
+
+        void endChange(long stamp) {
+            version.unlockWrite(stamp);
+        }
+
+        //moves the version on without changing anything, which sends readers that saw the old one back to the root.
+        void touch() {
+            version.unlockWrite(version.writeLock());
+        }
+    }
+
+    //guards the root field itself. Held only until the root node is locked and can't be replaced.
+    private final ReentrantReadWriteLock rootLock = new ReentrantReadWriteLock();
+    private volatile Node root = null;
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder readRetries = new LongAdder();
+
+/* This method checks to see if the tree has a certain value. Takes an int.
+ * It returns true if the value is in the tree and false otherwise.
+ */
+    public boolean hasValue(int value) {
+        while(true){
+            int result = findOptimistically(value);
+            if(result >= 0) return result == 1;
+            readRetries.increment();
+            //let the writer in our way finish if it shares our core
+            Thread.yield();
+        }
+    }
+
+/*
+ * One optimistic descent for hasValue. It returns 1 if the value was found, 0 if it wasn't, and -1
+ * if a writer changed a node on the path while we were reading it. Fields read under a stamp may
+ * be half-updated, so nothing is trusted until the stamp they were read under has been validated.
+ */
+    private int findOptimistically(int value) {
+        Node node = root;
+        if(node == null) return 0;
+
+        long stamp = node.version.tryOptimisticRead();
+        if(stamp == 0) return -1;
+
+        //the stamp only covers the node's fields. If the node stopped being the root before we took
+        //it, a split may already have cut it down to its left half.
+        if(root != node) return -1;
+
+        while(true){
+            int n = node.values;
+            int i = 0;
+            while(i < n && node.keys[i] < value) i++;
+            boolean found = i < n && node.keys[i] == value;
+
+            if(found || node.isLeaf){
+                if(!node.version.validate(stamp)) return -1;
+                return found ? 1 : 0;
+            }
+
+            //take the child's stamp before checking ours, so no change can slip in between the two
+            Node child = node.children[i];
+            if(child == null) return -1;
+            long childStamp = child.version.tryOptimisticRead();
+            if(childStamp == 0 || !node.version.validate(stamp)) return -1;
+
+            node = child;
+            stamp = childStamp;
+        }
+    }
+
+/* Takes an int and inserts it into the tree.
+ * It returns true if the value was added and false if it was already in the tree.
+ */
+    public boolean addValue(int value) {
+        int result = tryAddAtLeaf(value);
+        if(result < 0) result = addSplitting(value) ? 1 : 0;
+        if(result == 1) size.incrementAndGet();
+        return result == 1;
+    }
+
+/*
+ * The optimistic insert. It read-couples down to the right leaf, write-locking only the leaf,
+ * and places the value there if the leaf has room. It returns 1 if it added the value, 0 if
+ * the value was already in the tree, and -1 if the tree is empty or the leaf is full, in which
+ * case nothing was changed.
+ */
+    private int tryAddAtLeaf(int value) {
+        rootLock.readLock().lock();
+        Node node = root;
+        if(node == null){
+            rootLock.readLock().unlock();
+            return -1;
+        }
+        lockForDescent(node);
+        rootLock.readLock().unlock();
+
+        while(true){
+            int i = node.indexFor(value);
+
+            if(node.holds(value, i)){
+                unlockForDescent(node);
+                return 0;
+            }
+
+            if(node.isLeaf){
+                if(node.values == 3){
+                    node.writeUnlock();
+                    return -1;
+                }
+                insertAt(node, i, value);
+                node.writeUnlock();
+                return 1;
+            }
+
+            Node child = node.children[i];
+            lockForDescent(child);
+            node.readUnlock();
+            node = child;
+        }
+    }
+
+/*
+ * The pessimistic insert. It write-couples down from the root, splitting every full node before
+ * stepping into it, exactly like TwoFourTree.addValue.
+ */
+    private boolean addSplitting(int value) {
+        rootLock.writeLock().lock();
+
+        if(root == null){
+            //fill the node in before publishing it to lock-free readers
+            Node leaf = new Node(true);
+            leaf.keys[0] = value;
+            leaf.values = 1;
+            root = leaf;
+            rootLock.writeLock().unlock();
+            return true;
+        }
+
+        Node node = root;
+        node.writeLock();
+
+        //a full root is split under the root lock, which is the only way the tree grows taller
+        if(node.values == 3){
+            if(node.holds(value, node.indexFor(value))){
+                node.writeUnlock();
+                rootLock.writeLock().unlock();
+                return false;
+            }
+
+            //the new root goes up before the old one is split. Until then it is an empty node
+            //that leads straight to the old root, which lock-free readers can follow safely.
+            Node newRoot = new Node(false);
+            newRoot.children[0] = node;
+            newRoot.writeLock();
+            root = newRoot;
+            splitChild(newRoot, 0);
+            node.writeUnlock();
+            node = newRoot;
+        }
+        rootLock.writeLock().unlock();
+
+        while(true){
+            int i = node.indexFor(value);
+
+            if(node.holds(value, i)){
+                node.writeUnlock();
+                return false;
+            }
+
+            if(node.isLeaf){
+                insertAt(node, i, value);
+                node.writeUnlock();
+                return true;
+            }
+
+            Node child = node.children[i];
+            child.writeLock();
+
+            if(child.values == 3){
+                if(child.holds(value, child.indexFor(value))){
+                    child.writeUnlock();
+                    node.writeUnlock();
+                    return false;
+                }
+
+                //the new sibling is only reachable through the node we hold, so locking it can't block
+                splitChild(node, i);
+                if(value > node.keys[i]){
+                    Node sibling = node.children[i + 1];
+                    sibling.writeLock();
+                    child.writeUnlock();
+                    child = sibling;
+                }
+            }
+
+            node.writeUnlock();
+            node = child;
+        }
+    }
+
+/* This method removes a value from the tree. It takes an int.
+ * It returns true if the value was removed and false otherwise.
+ */
+    public boolean deleteValue(int value) {
+        int result = tryDeleteAtLeaf(value);
+        if(result < 0) result = deleteRebalancing(value) ? 1 : 0;
+        if(result == 1) size.decrementAndGet();
+        return result == 1;
+    }
+
+/*
+ * The optimistic delete. It read-couples down, write-locking only the leaf, and removes the value
+ * if it sits in a leaf that can spare a key. It returns 1 if it removed the value, 0 if the value
+ * isn't in the tree, and -1 if the delete needs rebalancing, in which case nothing was changed.
+ */
+    private int tryDeleteAtLeaf(int value) {
+        rootLock.readLock().lock();
+        Node node = root;
+        if(node == null){
+            rootLock.readLock().unlock();
+            return 0;
+        }
+        lockForDescent(node);
+        rootLock.readLock().unlock();
+
+        while(true){
+            int i = node.indexFor(value);
+
+            if(node.isLeaf){
+                int result;
+                if(!node.holds(value, i)){
+                    result = 0;
+                }
+                else if(node.values >= 2){
+                    removeAt(node, i);
+                    result = 1;
+                }
+                else{
+                    result = -1;
+                }
+                node.writeUnlock();
+                return result;
+            }
+
+            //values in inner nodes need a replacement from below, which takes the pessimistic path
+            if(node.holds(value, i)){
+                node.readUnlock();
+                return -1;
+            }
+
+            Node child = node.children[i];
+            lockForDescent(child);
+            node.readUnlock();
+            node = child;
+        }
+    }
+
+/*
+ * The pessimistic delete. It write-couples down from the root, giving every node a second key
+ * before stepping into it, exactly like TwoFourTree.deleteValue.
+ */
+    private boolean deleteRebalancing(int value) {
+        rootLock.writeLock().lock();
+        boolean holdingRoot = true;
+
+        Node node = root;
+        if(node == null){
+            rootLock.writeLock().unlock();
+            return false;
+        }
+        node.writeLock();
+
+        try{
+            while(true){
+                int i = node.indexFor(value);
+
+                if(node.holds(value, i)){
+
+                    //at a leaf we can simply drop the key
+                    if(node.isLeaf){
+                        removeAt(node, i);
+                        //only the root leaf can run empty
+                        if(node.values == 0) root = null;
+                        node.writeUnlock();
+                        return true;
+                    }
+
+                    Node left = node.children[i];
+                    Node right = node.children[i + 1];
+                    left.writeLock();
+                    right.writeLock();
+
+                    //replace the value with its predecessor or successor if a child can spare one.
+                    //the node stays locked, and its version held, until the replacement is written back,
+                    //so a reader can't miss the replacement while it is on its way up from the leaf.
+                    if(left.values >= 2){
+                        right.writeUnlock();
+                        holdingRoot = releaseRoot(holdingRoot);
+                        long stamp = node.beginChange();
+                        node.keys[i] = removeLast(left);
+                        node.endChange(stamp);
+                        node.writeUnlock();
+                        return true;
+                    }
+                    if(right.values >= 2){
+                        left.writeUnlock();
+                        holdingRoot = releaseRoot(holdingRoot);
+                        long stamp = node.beginChange();
+                        node.keys[i] = removeFirst(right);
+                        node.endChange(stamp);
+                        node.writeUnlock();
+                        return true;
+                    }
+
+                    //otherwise pull the value down between its two 2-node children and continue there
+                    Node merged = mergeChildren(node, i);
+                    node.writeUnlock();
+                    holdingRoot = releaseRoot(holdingRoot);
+                    node = merged;
+                    continue;
+                }
+
+                if(node.isLeaf){
+                    node.writeUnlock();
+                    return false;
+                }
+
+                Node child = fixChild(node, i);
+                node.writeUnlock();
+                holdingRoot = releaseRoot(holdingRoot);
+                node = child;
+            }
+        }
+        finally{
+            if(holdingRoot) rootLock.writeLock().unlock();
+        }
+    }
+
+/* Returns the number of values in the tree. */
+    public int size() {
+        return size.get();
+    }
+
+/* Returns how many times an optimistic hasValue has had to start over because a writer got in its way. */
+    public long readRetries() {
+        return readRetries.sum();
+    }
+
+    private boolean releaseRoot(boolean holdingRoot) {
+        if(holdingRoot) rootLock.writeLock().unlock();
+        return false;
+    }
+
+    //optimistic passes read-lock inner nodes and write-lock the leaf they end at
+    private void lockForDescent(Node node) {
+        if(node.isLeaf) node.writeLock();
+        else node.readLock();
+    }
+
+    private void unlockForDescent(Node node) {
+        if(node.isLeaf) node.writeUnlock();
+        else node.readUnlock();
+    }
+
+/*
+ * Splits the full child at index i of parent into two 2-nodes and pushes its middle key up into
+ * parent. The full child stays on as the left half. The caller holds both write locks.
+ */
+    private void splitChild(Node parent, int i) {
+        Node full = parent.children[i];
+        Node sibling = new Node(full.isLeaf);
+        long parentStamp = parent.beginChange();
+        long fullStamp = full.beginChange();
+
+        //the right half takes the largest key and the two rightmost children
+        sibling.keys[0] = full.keys[2];
+        sibling.children[0] = full.children[2];
+        sibling.children[1] = full.children[3];
+        sibling.values = 1;
+
+        int middle = full.keys[1];
+        full.children[2] = null;
+        full.children[3] = null;
+        full.values = 1;
+
+        //make room in the parent for the middle key and the new child
+        for(int j = parent.values; j > i; j--){
+            parent.keys[j] = parent.keys[j - 1];
+            parent.children[j + 1] = parent.children[j];
+        }
+        parent.keys[i] = middle;
+        parent.children[i + 1] = sibling;
+        parent.values++;
+
+        full.endChange(fullStamp);
+        parent.endChange(parentStamp);
+    }
+
+/*
+ * Makes sure the child at index i of parent has at least two keys before we descend into it,
+ * rotating from a sibling when one can spare a key and merging with one otherwise. The caller
+ * holds the parent's write lock. It returns the write-locked node to continue at, with every
+ * sibling it touched unlocked again.
+ */
+    private Node fixChild(Node parent, int i) {
+        Node child = parent.children[i];
+        child.writeLock();
+        if(child.values >= 2) return child;
+
+        if(i > 0){
+            Node leftSibling = parent.children[i - 1];
+            leftSibling.writeLock();
+            if(leftSibling.values >= 2){
+                rotateRight(parent, i - 1);
+                leftSibling.writeUnlock();
+                return child;
+            }
+            if(i == parent.values){
+                //no right sibling, so merge into the left one
+                return mergeChildren(parent, i - 1);
+            }
+            leftSibling.writeUnlock();
+        }
+
+        Node rightSibling = parent.children[i + 1];
+        rightSibling.writeLock();
+        if(rightSibling.values >= 2){
+            rotateLeft(parent, i);
+            rightSibling.writeUnlock();
+            return child;
+        }
+        return mergeChildren(parent, i);
+    }
+
+/* Moves the separator at index i of parent into its right child, and the largest key of the left
+ * child up to replace it. The caller holds all three write locks. */
+    private void rotateRight(Node parent, int i) {
+        Node left = parent.children[i];
+        Node right = parent.children[i + 1];
+        long parentStamp = parent.beginChange();
+        long leftStamp = left.beginChange();
+        long rightStamp = right.beginChange();
+
+        for(int j = right.values; j > 0; j--) right.keys[j] = right.keys[j - 1];
+        for(int j = right.values + 1; j > 0; j--) right.children[j] = right.children[j - 1];
+
+        right.keys[0] = parent.keys[i];
+        right.children[0] = left.children[left.values];
+        right.values++;
+
+        parent.keys[i] = left.keys[left.values - 1];
+        left.children[left.values] = null;
+        left.values--;
+
+        right.endChange(rightStamp);
+        left.endChange(leftStamp);
+        parent.endChange(parentStamp);
+    }
+
+/* Moves the separator at index i of parent into its left child, and the smallest key of the right
+ * child up to replace it. The caller holds all three write locks. */
+    private void rotateLeft(Node parent, int i) {
+        Node left = parent.children[i];
+        Node right = parent.children[i + 1];
+        long parentStamp = parent.beginChange();
+        long leftStamp = left.beginChange();
+        long rightStamp = right.beginChange();
+
+        left.keys[left.values] = parent.keys[i];
+        left.children[left.values + 1] = right.children[0];
+        left.values++;
+
+        parent.keys[i] = right.keys[0];
+        for(int j = 0; j < right.values - 1; j++) right.keys[j] = right.keys[j + 1];
+        for(int j = 0; j < right.values; j++) right.children[j] = right.children[j + 1];
+        right.children[right.values] = null;
+        right.values--;
+
+        right.endChange(rightStamp);
+        left.endChange(leftStamp);
+        parent.endChange(parentStamp);
+    }
+
+/*
+ * Merges the 2-node children at index i and i + 1 of parent, with the separator between them,
+ * into one 4-node that keeps the left child. The caller holds the parent's and both children's
+ * write locks. The right child is unlocked and dropped, and nobody can be waiting for it since
+ * reaching it takes the parent's lock. Its version is moved on as well, because a reader still
+ * inside it would otherwise pair its stale keys with children that keep changing under the
+ * merged node. A root left without keys is replaced by the merged node, which only happens while
+ * the root lock is held. It returns the merged node, still locked.
+ */
+    private Node mergeChildren(Node parent, int i) {
+        Node left = parent.children[i];
+        Node right = parent.children[i + 1];
+        long parentStamp = parent.beginChange();
+        long leftStamp = left.beginChange();
+
+        left.keys[1] = parent.keys[i];
+        left.keys[2] = right.keys[0];
+        left.children[2] = right.children[0];
+        left.children[3] = right.children[1];
+        left.values = 3;
+        left.endChange(leftStamp);
+        right.touch();
+        right.writeUnlock();
+
+        //close the gap in the parent
+        for(int j = i; j < parent.values - 1; j++){
+            parent.keys[j] = parent.keys[j + 1];
+            parent.children[j + 1] = parent.children[j + 2];
+        }
+        parent.children[parent.values] = null;
+        parent.values--;
+
+        if(parent.values == 0 && parent == root){
+            //the root ran out of keys, so the tree gets one level shorter
+            root = left;
+        }
+        parent.endChange(parentStamp);
+
+        return left;
+    }
+
+/* Removes and returns the largest key below the write-locked node, which has at least two keys.
+ * It write-couples down and releases every lock it took, including the node's. Every node on the
+ * way is touched, so readers that were already below the value being replaced start over. */
+    private int removeLast(Node node) {
+        while(!node.isLeaf){
+            node.touch();
+            Node child = fixChild(node, node.values);
+            node.writeUnlock();
+            node = child;
+        }
+        long stamp = node.beginChange();
+        node.values--;
+        int value = node.keys[node.values];
+        node.endChange(stamp);
+        node.writeUnlock();
+        return value;
+    }
+
+/* Removes and returns the smallest key below the write-locked node, which has at least two keys.
+ * It write-couples down and releases every lock it took, including the node's, touching every node
+ * on the way like removeLast. */
+    private int removeFirst(Node node) {
+        while(!node.isLeaf){
+            node.touch();
+            Node child = fixChild(node, 0);
+            node.writeUnlock();
+            node = child;
+        }
+        int value = node.keys[0];
+        removeAt(node, 0);
+        node.writeUnlock();
+        return value;
+    }
+
+    private void insertAt(Node node, int i, int value) {
+        long stamp = node.beginChange();
+        for(int j = node.values; j > i; j--) node.keys[j] = node.keys[j - 1];
+        node.keys[i] = value;
+        node.values++;
+        node.endChange(stamp);
+    }
+
+    private void removeAt(Node node, int i) {
+        long stamp = node.beginChange();
+        for(int j = i; j < node.values - 1; j++) node.keys[j] = node.keys[j + 1];
+        node.values--;
+        node.endChange(stamp);
+    }
+}
@@ -0,0 +1,467 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+ * A TwoFourTree whose addValue and deleteValue are durable: neither returns until the change is
+ * in a write-ahead log on disk, so every acknowledged change survives a crash. Opening the tree
+ * again replays the log, on top of the last checkpoint if there is one, to rebuild it.
+ *
+ * Forcing the log once per change would cap a disk at a few hundred changes a second, so changes
+ * are group-committed. Each change is applied to the tree and appended to a pending batch under
+ * one lock, and the caller then waits for it to be committed. A single log writer thread takes
+ * whatever is pending, writes it as one frame and forces it once, then wakes every caller the
+ * frame covered. Callers that arrive while a force is in progress all land in the next frame.
+ * The writer can also hold a frame open for up to maxDelayMicros, to trade some latency for
+ * bigger batches when changes trickle in.
+ *
+ * The log is a header (magic, version) followed by frames:
+ *
+ *     frame    byte length of the records, sequence number of the first record (long),
+ *              CRC32 of the sequence number and the records, then the records
+ *     record   op (1 = add, 2 = delete) and the value, 5 bytes in all
+ *
+ * Every logged change gets the next sequence number. A frame cut short by a crash fails its
+ * length or CRC check, and replay stops there and cuts it off; nothing in it was acknowledged.
+ *
+ * checkpoint() saves the tree with TwoFourTree.writeTo behind a small header holding the last
+ * sequence number it covers, then empties the log. Replay skips anything the checkpoint already
+ * covers, so a crash between the two steps can't apply a change twice.
+ *
+ * Only changes that actually change the tree are logged. An add of a value that is already there
+ * still waits for the change that put it there to be committed, so its answer is durable too.
+ * hasValue and size read the tree as it is, which may include changes still waiting for their
+ * frame.
+ */
+public class DurableTwoFourTree implements Closeable {
+    private static final int MAGIC = 0x3234574C;           // "24WL"
+    private static final int VERSION = 1;
+    private static final int LOG_HEADER = 8;
+    private static final int FRAME_HEADER = 16;
+    private static final int RECORD_BYTES = 5;
+    private static final int CHECKPOINT_MAGIC = 0x32344350; // "24CP"
+    private static final byte ADD = 1;
+    private static final byte DELETE = 2;
+    //a pending batch this big is written at once, without waiting out the delay.
+    private static final int BATCH_BYTES = 1 << 20;
+
+    private final Path snapshot;
+    private final FileChannel channel;
+    private final long maxDelayNanos;
+    private TwoFourTree tree;
+
+    //guards the tree, the pending batch and the sequence numbers.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition work = lock.newCondition();
+    private final Condition committed = lock.newCondition();
+    //held while the log itself is written, so checkpoint can't interleave with a frame.
+    private final ReentrantLock logLock = new ReentrantLock();
+
+    private byte[] pending = new byte[FRAME_HEADER + 4096];
+    private int pendingLength = FRAME_HEADER;
+    private byte[] spare = new byte[FRAME_HEADER + 4096];
+    private long sequence = 0;                              // last sequence number handed out.
+    private long durable = 0;                               // last sequence number on disk.
+    private long commits = 0;
+    private long logged = 0;
+    private long recovered = 0;
+    private IOException failure = null;
+    private boolean closed = false;
+    private final Thread writer;
+
+/*
+ * This is the constructor. It opens the log in the file log, creating it if needed, and rebuilds
+ * the tree from the checkpoint in snapshot (which may be null if checkpoints aren't used) and the
+ * log. A frame is held open for at most maxDelayMicros, and 0 writes each frame as soon as the
+ * previous one is done. It throws an IOException if either file holds something else.
+ */
+    public DurableTwoFourTree(Path log, Path snapshot, long maxDelayMicros) throws IOException {
+        this.snapshot = snapshot;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try{
+            long covered = readCheckpoint();
+            replay(log, covered);
+        }
+        catch(IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+        durable = sequence;
+
+        writer = new Thread(this::writeFrames, "DurableTwoFourTree log writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+/* Opens a tree that only has a log and writes each frame as soon as it can. */
+    public DurableTwoFourTree(Path log) throws IOException {
+        this(log, null, 0);
+    }
+
+/* Takes an int and inserts it into the tree once it is logged.
+ * It returns true if the value was added and false if it was already in the tree.
+ */
+    public boolean addValue(int value) {
+        return change(ADD, value);
+    }
+
+/* Takes an int and deletes it from the tree once the deletion is logged.
+ * It returns true if the value was deleted and false if it wasn't in the tree.
+ */
+    public boolean deleteValue(int value) {
+        return change(DELETE, value);
+    }
+
+    public boolean hasValue(int value) {
+        lock.lock();
+        try{
+            return tree.hasValue(value);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try{
+            return tree.size();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+/* Returns how many frames have been written and forced since the tree was opened. */
+    public long commits() {
+        lock.lock();
+        try{
+            return commits;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+/* Returns how many changes have been logged since the tree was opened. */
+    public long loggedChanges() {
+        lock.lock();
+        try{
+            return logged;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+/* Returns how many changes were replayed from the log when the tree was opened. */
+    public long recoveredChanges() {
+        return recovered;
+    }
+
+/*
+ * Applies a change and waits for it to be committed. Waiting lets go of the lock, which is what
+ * lets other callers pile their changes into the same frame.
+ */
+    private boolean change(byte op, int value) {
+        lock.lock();
+        try{
+            if(closed) throw new IllegalStateException("DurableTwoFourTree is closed");
+            checkFailure();
+
+            boolean changed = (op == ADD) ? tree.addValue(value) : tree.deleteValue(value);
+            if(changed){
+                append(op, value);
+                sequence++;
+                logged++;
+                if(pendingLength == FRAME_HEADER + RECORD_BYTES || pendingLength >= BATCH_BYTES) work.signal();
+            }
+
+            long mine = sequence;
+            while(durable < mine && failure == null){
+                committed.awaitUninterruptibly();
+            }
+            checkFailure();
+            return changed;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    private void append(byte op, int value) {
+        if(pendingLength + RECORD_BYTES > pending.length){
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        }
+        pending[pendingLength] = op;
+        pending[pendingLength + 1] = (byte) (value >>> 24);
+        pending[pendingLength + 2] = (byte) (value >>> 16);
+        pending[pendingLength + 3] = (byte) (value >>> 8);
+        pending[pendingLength + 4] = (byte) value;
+        pendingLength += RECORD_BYTES;
+    }
+
+    private void checkFailure() {
+        if(failure != null) throw new IllegalStateException("Could not write the DurableTwoFourTree log", failure);
+    }
+
+/*
+ * The log writer. It sleeps until something is pending, lets the batch grow for up to the
+ * delay, then swaps in the spare buffer so callers can keep appending while the frame is written
+ * and forced. It only stops once it is closed and nothing is left pending.
+ */
+    private void writeFrames() {
+        while(true){
+            lock.lock();
+            try{
+                while(pendingLength == FRAME_HEADER && !closed){
+                    work.awaitUninterruptibly();
+                }
+                if(pendingLength == FRAME_HEADER) return;
+
+                long left = maxDelayNanos;
+                while(left > 0 && !closed && pendingLength < BATCH_BYTES){
+                    try{
+                        left = work.awaitNanos(left);
+                    }
+                    catch(InterruptedException e){
+                        left = 0;
+                    }
+                }
+            }
+            finally{
+                lock.unlock();
+            }
+
+            logLock.lock();
+            try{
+                byte[] frame;
+                int length;
+                long last;
+                lock.lock();
+                try{
+                    //a checkpoint may have taken the batch while we waited for the log
+                    if(pendingLength == FRAME_HEADER) continue;
+                    frame = pending;
+                    length = pendingLength;
+                    last = sequence;
+                    pending = spare;
+                    pendingLength = FRAME_HEADER;
+                }
+                finally{
+                    lock.unlock();
+                }
+
+                int records = (length - FRAME_HEADER) / RECORD_BYTES;
+                ByteBuffer header = ByteBuffer.wrap(frame, 0, FRAME_HEADER);
+                header.putInt(length - FRAME_HEADER);
+                header.putLong(last - records + 1);
+                CRC32 crc = new CRC32();
+                crc.update(frame, 4, 8);
+                crc.update(frame, FRAME_HEADER, length - FRAME_HEADER);
+                header.putInt((int) crc.getValue());
+
+                IOException error = null;
+                try{
+                    ByteBuffer out = ByteBuffer.wrap(frame, 0, length);
+                    while(out.hasRemaining()) channel.write(out);
+                    channel.force(false);
+                }
+                catch(IOException e){
+                    error = e;
+                }
+
+                lock.lock();
+                try{
+                    spare = frame;
+                    if(error != null){
+                        failure = error;
+                    }
+                    else{
+                        durable = last;
+                        commits++;
+                    }
+                    committed.signalAll();
+                    if(error != null) return;
+                }
+                finally{
+                    lock.unlock();
+                }
+            }
+            finally{
+                logLock.unlock();
+            }
+        }
+    }
+
+/*
+ * Saves the whole tree to the snapshot file and empties the log. Changes wait while it runs.
+ * The checkpoint is written to a temporary file next to the snapshot and moved over it, so a
+ * crash leaves either the old checkpoint or the new one, never half of one.
+ */
+    public void checkpoint() throws IOException {
+        if(snapshot == null) throw new IllegalStateException("This DurableTwoFourTree has no snapshot file");
+
+        logLock.lock();
+        try{
+            lock.lock();
+            try{
+                if(closed) throw new IllegalStateException("DurableTwoFourTree is closed");
+                checkFailure();
+
+                Path temp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+                try(FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)){
+                    ByteBuffer header = ByteBuffer.allocate(12);
+                    header.putInt(CHECKPOINT_MAGIC).putLong(sequence).flip();
+                    while(header.hasRemaining()) out.write(header);
+                    tree.writeTo(out);
+                    out.force(true);
+                }
+                Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                //the checkpoint holds every change so far, including the ones still pending
+                pendingLength = FRAME_HEADER;
+                durable = sequence;
+                committed.signalAll();
+
+                channel.truncate(LOG_HEADER);
+                channel.position(LOG_HEADER);
+                channel.force(true);
+            }
+            finally{
+                lock.unlock();
+            }
+        }
+        finally{
+            logLock.unlock();
+        }
+    }
+
+/* Commits whatever is pending, stops the log writer and closes the log. The tree can't be used afterwards. */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try{
+            if(closed) return;
+            closed = true;
+            work.signal();
+        }
+        finally{
+            lock.unlock();
+        }
+
+        boolean interrupted = false;
+        while(writer.isAlive()){
+            try{
+                writer.join();
+            }
+            catch(InterruptedException e){
+                interrupted = true;
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+        channel.close();
+        if(failure != null) throw failure;
+    }
+
+/* Loads the checkpoint, if there is one, and returns the last sequence number it covers. */
+    private long readCheckpoint() throws IOException {
+        if(snapshot == null || !Files.exists(snapshot)){
+            tree = new TwoFourTree();
+            return 0;
+        }
+        try(FileChannel in = FileChannel.open(snapshot, StandardOpenOption.READ)){
+            ByteBuffer header = ByteBuffer.allocate(12);
+            while(header.hasRemaining()){
+                if(in.read(header) < 0) throw new EOFException(snapshot + " is truncated");
+            }
+            header.flip();
+            if(header.getInt() != CHECKPOINT_MAGIC){
+                throw new IOException(snapshot + " is not a DurableTwoFourTree checkpoint");
+            }
+            long covered = header.getLong();
+            tree = TwoFourTree.readFrom(in);
+            sequence = covered;
+            return covered;
+        }
+    }
+
+/*
+ * Applies every logged change the checkpoint doesn't cover, then cuts the log off after the
+ * last whole frame and leaves the channel positioned there for new frames.
+ */
+    private void replay(Path log, long covered) throws IOException {
+        long length = channel.size();
+        if(length == 0){
+            ByteBuffer header = ByteBuffer.allocate(LOG_HEADER);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            while(header.hasRemaining()) channel.write(header);
+            channel.force(true);
+            return;
+        }
+
+        channel.position(0);
+        //the stream is only borrowed, closing it would close the channel
+        InputStream stream = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+        DataInputStream in = new DataInputStream(stream);
+        if(length < LOG_HEADER || in.readInt() != MAGIC){
+            throw new IOException(log + " is not a DurableTwoFourTree log");
+        }
+        int version = in.readInt();
+        if(version != VERSION) throw new IOException(log + " has unsupported version " + version);
+
+        long end = LOG_HEADER;
+        byte[] records = new byte[4096];
+        CRC32 crc = new CRC32();
+        while(end + FRAME_HEADER <= length){
+            int size = in.readInt();
+            long first = in.readLong();
+            int expected = in.readInt();
+            if(size <= 0 || size % RECORD_BYTES != 0 || end + FRAME_HEADER + size > length) break;
+
+            if(records.length < size) records = new byte[Math.max(size, records.length * 2)];
+            in.readFully(records, 0, size);
+            crc.reset();
+            crc.update(ByteBuffer.allocate(8).putLong(0, first).array());
+            crc.update(records, 0, size);
+            if((int) crc.getValue() != expected) break;
+
+            for(int at = 0; at < size; at += RECORD_BYTES){
+                long number = first + at / RECORD_BYTES;
+                if(number <= covered) continue;
+                int value = ((records[at + 1] & 0xFF) << 24) | ((records[at + 2] & 0xFF) << 16)
+                        | ((records[at + 3] & 0xFF) << 8) | (records[at + 4] & 0xFF);
+                if(records[at] == ADD) tree.addValue(value);
+                else tree.deleteValue(value);
+                recovered++;
+                sequence = number;
+            }
+            end += FRAME_HEADER + size;
+        }
+
+        //whatever follows the last whole frame is a write the crash cut short
+        if(end < length){
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+    }
+}
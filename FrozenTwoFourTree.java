@@ -0,0 +1,173 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
+/*
+ * A read-only 2-3-4 tree of ints with no objects and no pointers, made by TwoFourTree.freeze.
+ * Every node is a full 4-node, and the nodes are laid out level by level (the Eytzinger order
+ * of a 4-way tree) in one int[], so the children of node b are always nodes 4b + 1 to 4b + 4 and
+ * a lookup computes where to go next instead of loading a reference. Keys are placed in order
+ * by an in-order walk of that implicit tree, and the slots left over after the last key hold
+ * PAD, which sorts after every key, so only the last few nodes are partly empty.
+ *
+ * Each node takes four ints: its three keys and one PAD, so a node is 16 bytes and the four
+ * children of a node are 64 contiguous bytes. LEAD empty nodes sit in front of the root to make
+ * every such group of siblings start on a multiple of 64 bytes from the start of the array's
+ * data, so going down a level touches one cache line, and the next line is the one the hardware
+ * prefetcher would fetch anyway. That works out to about 5.3 bytes per key, against over 20 in
+ * a TwoFourTree.
+ *
+ * Every search goes all the way to the bottom, counting in each node how many keys are below the
+ * one it's looking for, the same branch-free count TwoFourTree.indexFor uses.
+ */
+public class FrozenTwoFourTree {
+    private static final int PAD = Integer.MAX_VALUE;
+    private static final int NODE_INTS = 4;
+    private static final int LEAD = 3;
+
+    //the most keys a frozen tree can take before its array would pass the largest Java array.
+    static final int MAX_KEYS = (Integer.MAX_VALUE / NODE_INTS - LEAD) * 3;
+
+    private final int[] keys;
+    private final int nodes;
+    private final int size;
+    private final int min;
+    private final int max;
+
+/*
+ * Builds the tree from size keys, which source must hand out in strictly ascending order.
+ * TwoFourTree.freeze feeds it from a cursor, so no sorted copy of the keys is ever made.
+ */
+    FrozenTwoFourTree(int size, IntSupplier source) {
+        if(size < 0 || size > MAX_KEYS){
+            throw new IllegalArgumentException("A frozen tree can't hold " + size + " keys");
+        }
+        this.size = size;
+        this.nodes = (size + 2) / 3;
+        this.keys = new int[(nodes + LEAD) * NODE_INTS];
+        Arrays.fill(keys, PAD);
+
+        Filler filler = new Filler(source);
+        filler.fill(0);
+        this.min = filler.first;
+        this.max = filler.last;
+    }
+
+    //places the keys in order by walking the implicit tree in order, recording the first and last key.
+    private final class Filler {
+        final IntSupplier source;
+        int placed = 0;
+        int first = 0;
+        int last = 0;
+
+        Filler(IntSupplier source) {
+            this.source = source;
+        }
+
+        void fill(int node) {
+            if(node >= nodes) return;
+
+            int base = (node + LEAD) * NODE_INTS;
+            for(int c = 0; c < 4; c++){
+                fill(4 * node + 1 + c);
+                if(c < 3 && placed < size){
+                    last = source.getAsInt();
+                    if(placed == 0) first = last;
+                    keys[base + c] = last;
+                    placed++;
+                }
+            }
+        }
+    }
+
+/* This method checks to see if the tree has a certain value. Takes an int.
+ * It returns true if the value is in the tree and false otherwise.
+ */
+    public boolean hasValue(int value) {
+        return size > 0 && value <= max && lowerBound(value) == value;
+    }
+
+/* Returns the smallest key that is at least value. It throws NoSuchElementException if there is none. */
+    public int ceiling(int value) {
+        if(size == 0 || value > max) throw new NoSuchElementException("No key at or above " + value);
+        return lowerBound(value);
+    }
+
+/* Returns the largest key that is at most value. It throws NoSuchElementException if there is none. */
+    public int floor(int value) {
+        if(size == 0 || value < min) throw new NoSuchElementException("No key at or below " + value);
+        if(value >= max) return max;
+
+        //value is below max, so PAD is never at most value and never counted
+        int[] keys = this.keys;
+        int result = min;
+        int node = 0;
+        while(node < nodes){
+            int base = (node + LEAD) * NODE_INTS;
+            int i = ((value >= keys[base]) ? 1 : 0) + ((value >= keys[base + 1]) ? 1 : 0)
+                    + ((value >= keys[base + 2]) ? 1 : 0);
+            if(i > 0) result = keys[base + i - 1];
+            node = 4 * node + 1 + i;
+        }
+        return result;
+    }
+
+/*
+ * This method calls action with every value between lo and hi, both included, in ascending order.
+ * It only walks into the subtrees that can hold part of the range.
+ */
+    public void forEachInRange(int lo, int hi, IntConsumer action) {
+        if(size == 0 || lo > hi || lo > max) return;
+        visit(0, lo, Math.min(hi, max), action);
+    }
+
+/* Returns the number of values in the tree. */
+    public int size() {
+        return size;
+    }
+
+/* Returns the size of the tree's key array in bytes, padding and the empty nodes in front included. */
+    public long bytes() {
+        return (long) keys.length * Integer.BYTES;
+    }
+
+    //returns the smallest key that is at least value, which must not be above max.
+    private int lowerBound(int value) {
+        int[] keys = this.keys;
+        int result = max;
+        int node = 0;
+        while(node < nodes){
+            int base = (node + LEAD) * NODE_INTS;
+            int i = ((value > keys[base]) ? 1 : 0) + ((value > keys[base + 1]) ? 1 : 0)
+                    + ((value > keys[base + 2]) ? 1 : 0);
+            if(i < 3) result = keys[base + i];
+            node = 4 * node + 1 + i;
+        }
+        return result;
+    }
+
+    //visits the keys of the subtree at node that lie in [lo, hi], where hi is at most max. The
+    //walk stops for good once it hands out Integer.MAX_VALUE, since only PAD can follow that.
+    //It returns false once it has stopped.
+    private boolean visit(int node, int lo, int hi, IntConsumer action) {
+        if(node >= nodes) return true;
+
+        int base = (node + LEAD) * NODE_INTS;
+        for(int c = 0; c < 4; c++){
+            //child c holds the keys between key c - 1 and key c
+            boolean aboveLo = (c == 3) || keys[base + c] > lo;
+            boolean belowHi = (c == 0) || keys[base + c - 1] < hi;
+            if(aboveLo && belowHi && !visit(4 * node + 1 + c, lo, hi, action)) return false;
+            if(c == 3) break;
+
+            int key = keys[base + c];
+            if(key > hi) return false;
+            if(key >= lo){
+                action.accept(key);
+                if(key == Integer.MAX_VALUE) return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,524 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * A 2-3-4 tree that lives in a memory-mapped file, with the same addValue/hasValue/deleteValue
+ * contract as TwoFourTree. Opening an existing file only maps it and reads the header, so a tree
+ * of any size is ready at once, and lookups only page in the nodes they actually touch.
+ *
+ * The layout is PooledTwoFourTree's, written to fixed 32-byte records instead of arrays:
+ *
+ *     header   magic, version, root, size, nextSlot, freeHead (ints), padded to 32 bytes
+ *     record   key count, 3 keys, 4 child slots (ints), so a slot is a leaf iff child 0 is NIL
+ *
+ * All ints are little-endian. Slots freed by merges are chained through their first child and
+ * reused before the file grows; when it must grow, its size doubles and it is mapped again.
+ *
+ * Changes go straight to the mapping, and the header is rewritten at the end of every add and
+ * delete. The operating system writes them back whenever it likes; force() makes sure they are on
+ * disk. A crash in the middle of an operation can leave the file inconsistent, so anything that
+ * must survive one should force() after the operations it cares about.
+ *
+ * One mapping is limited to 2GB, which is about 67 million nodes or well over 100 million keys.
+ */
+public class MappedTwoFourTree implements Closeable {
+    private static final int NIL = -1;
+    private static final int MAGIC = 0x32345452;        // "RT42" in the little-endian file.
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int RECORD_BYTES = 32;
+    private static final int KEYS = 4;                  // byte offset of the keys within a record.
+    private static final int CHILDREN = 16;             // byte offset of the children within a record.
+    private static final long MAX_BYTES = Integer.MAX_VALUE;
+
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;                               // slots that fit in the current mapping.
+
+    private int root = NIL;
+    private int size = 0;
+    private int nextSlot = 0;                           // first slot that has never been handed out.
+    private int freeHead = NIL;                         // first slot of the free chain.
+
+/*
+ * This is the constructor. It opens the tree stored in file, or creates an empty one there if
+ * the file doesn't exist or is empty. It throws an IOException if the file holds something else.
+ */
+    public MappedTwoFourTree(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try{
+            long length = channel.size();
+            if(length == 0){
+                map(HEADER_BYTES + 1024L * RECORD_BYTES);
+                writeHeader();
+            }
+            else{
+                if(length < HEADER_BYTES || length > MAX_BYTES){
+                    throw new IOException(file + " is not a MappedTwoFourTree file");
+                }
+                map(length);
+                readHeader(file);
+            }
+        }
+        catch(IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+/* Takes an int and inserts it into the tree. Full nodes are split on the way down,
+ * so the value can always be placed once a leaf is reached.
+ * It returns true if the value was added and false if it was already in the tree.
+ */
+    public boolean addValue(int value) {
+
+        //if tree is empty we simply create the first item
+        if(root == NIL){
+            root = allocate();
+            setKey(root, 0, value);
+            setCount(root, 1);
+            size++;
+            writeHeader();
+            return true;
+        }
+
+        //a full root is split first, which is the only way the tree grows taller
+        if(count(root) == 3){
+            if(indexOf(root, value) >= 0) return false;
+
+            int oldRoot = root;
+            root = allocate();
+            setChild(root, 0, oldRoot);
+            splitChild(root, 0);
+        }
+
+        int walker = root;
+
+        while(true){
+            int n = count(walker);
+
+            //find the first key that isn't smaller than the value
+            int i = 0;
+            while(i < n && key(walker, i) < value) i++;
+
+            if(i < n && key(walker, i) == value){
+                writeHeader();
+                return false;
+            }
+
+            //a leaf here is never full, so shift the larger keys over and place the value
+            if(isLeaf(walker)){
+                for(int j = n; j > i; j--) setKey(walker, j, key(walker, j - 1));
+                setKey(walker, i, value);
+                setCount(walker, n + 1);
+                size++;
+                writeHeader();
+                return true;
+            }
+
+            int child = child(walker, i);
+
+            //split full children before we step into them
+            if(count(child) == 3){
+                if(indexOf(child, value) >= 0){
+                    writeHeader();
+                    return false;
+                }
+
+                splitChild(walker, i);
+                if(value > key(walker, i)) i++;
+                child = child(walker, i);
+            }
+
+            walker = child;
+        }
+    }
+
+/* This method checks to see if the tree has a certain value. Takes an int.
+ * It returns true if the value is in the tree and false otherwise.
+ */
+    public boolean hasValue(int value) {
+        int walker = root;
+
+        while(walker != NIL){
+            int n = count(walker);
+
+            int i = 0;
+            while(i < n && key(walker, i) < value) i++;
+
+            if(i < n && key(walker, i) == value) return true;
+
+            walker = child(walker, i);
+        }
+
+        return false;
+    }
+
+/* This method removes a value from the tree. It takes an int.
+ * It returns true if the value was removed and false otherwise. Every node we step into
+ * is first given a second key by rotating from or merging with a sibling, so the removal
+ * at the bottom never has to travel back up.
+ */
+    public boolean deleteValue(int value) {
+        boolean removed = remove(value);
+        writeHeader();
+        return removed;
+    }
+
+    private boolean remove(int value) {
+        int walker = root;
+
+        while(walker != NIL){
+            int n = count(walker);
+
+            int i = 0;
+            while(i < n && key(walker, i) < value) i++;
+
+            if(i < n && key(walker, i) == value){
+
+                //at a leaf we can simply drop the key
+                if(isLeaf(walker)){
+                    removeKey(walker, i);
+                    if(count(walker) == 0){
+                        //only the root leaf can run empty
+                        release(walker);
+                        root = NIL;
+                    }
+                    size--;
+                    return true;
+                }
+
+                int left = child(walker, i);
+                int right = child(walker, i + 1);
+
+                //replace the value with its predecessor or successor if a child can spare one
+                if(count(left) >= 2){
+                    setKey(walker, i, removeLast(left));
+                    size--;
+                    return true;
+                }
+                if(count(right) >= 2){
+                    setKey(walker, i, removeFirst(right));
+                    size--;
+                    return true;
+                }
+
+                //otherwise pull the value down between its two 2-node children and continue there
+                walker = mergeChildren(walker, i);
+                continue;
+            }
+
+            if(isLeaf(walker)) return false;
+
+            walker = fixChild(walker, i);
+        }
+
+        return false;
+    }
+
+/* Returns the number of values in the tree. */
+    public int size() {
+        return size;
+    }
+
+/* Writes every change made so far through to the file on disk before it returns. */
+    public void force() {
+        buffer.force();
+    }
+
+/* Forces the tree to disk and closes the file. The tree can't be used afterwards. */
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+/*
+ * This method prints the tree starting at the root, indenting each level like
+ * TwoFourTree.printInOrder. It will do nothing if root is NIL.
+ */
+    public void printInOrder() {
+        if(root != NIL) printInOrder(root, 0);
+    }
+
+    private void printInOrder(int slot, int indent) {
+        int n = count(slot);
+        for(int i = 0; i <= n; i++){
+            if(!isLeaf(slot)) printInOrder(child(slot, i), indent + 1);
+            if(i == n) break;
+            for(int j = 0; j < indent; j++) System.out.printf("  ");
+            System.out.printf("%d\n", key(slot, i));
+        }
+    }
+
+/*
+ * Splits the full child at index i of parent into two 2-nodes and pushes the child's middle key
+ * up into parent. The full child keeps its slot as the left half. The parent must not be full.
+ */
+    private void splitChild(int parent, int i) {
+        int full = child(parent, i);
+        int sibling = allocate();
+        int pn = count(parent);
+
+        //the right half takes the largest key and the two rightmost children
+        setKey(sibling, 0, key(full, 2));
+        setChild(sibling, 0, child(full, 2));
+        setChild(sibling, 1, child(full, 3));
+        setCount(sibling, 1);
+
+        int middle = key(full, 1);
+        setChild(full, 2, NIL);
+        setChild(full, 3, NIL);
+        setCount(full, 1);
+
+        //make room in the parent for the middle key and the new child
+        for(int j = pn; j > i; j--){
+            setKey(parent, j, key(parent, j - 1));
+            setChild(parent, j + 1, child(parent, j));
+        }
+        setKey(parent, i, middle);
+        setChild(parent, i + 1, sibling);
+        setCount(parent, pn + 1);
+    }
+
+/*
+ * Makes sure the child at index i of parent has at least two keys before we descend into it,
+ * rotating from a sibling when one can spare a key and merging with one otherwise.
+ * It returns the slot to continue the descent at.
+ */
+    private int fixChild(int parent, int i) {
+        int child = child(parent, i);
+        if(count(child) >= 2) return child;
+
+        int pn = count(parent);
+        int leftSibling = (i > 0) ? child(parent, i - 1) : NIL;
+        int rightSibling = (i < pn) ? child(parent, i + 1) : NIL;
+
+        if(leftSibling != NIL && count(leftSibling) >= 2){
+            rotateRight(parent, i - 1);
+            return child;
+        }
+        if(rightSibling != NIL && count(rightSibling) >= 2){
+            rotateLeft(parent, i);
+            return child;
+        }
+        if(rightSibling != NIL){
+            return mergeChildren(parent, i);
+        }
+        return mergeChildren(parent, i - 1);
+    }
+
+/* Moves the separator at index i of parent down into its right child, and the largest key of
+ * the left child up to replace it. The left child's rightmost subtree moves across with it. */
+    private void rotateRight(int parent, int i) {
+        int left = child(parent, i);
+        int right = child(parent, i + 1);
+        int ln = count(left);
+        int rn = count(right);
+
+        for(int j = rn; j > 0; j--) setKey(right, j, key(right, j - 1));
+        for(int j = rn + 1; j > 0; j--) setChild(right, j, child(right, j - 1));
+
+        setKey(right, 0, key(parent, i));
+        setChild(right, 0, child(left, ln));
+        setCount(right, rn + 1);
+
+        setKey(parent, i, key(left, ln - 1));
+        setChild(left, ln, NIL);
+        setCount(left, ln - 1);
+    }
+
+/* Moves the separator at index i of parent down into its left child, and the smallest key of
+ * the right child up to replace it. The right child's leftmost subtree moves across with it. */
+    private void rotateLeft(int parent, int i) {
+        int left = child(parent, i);
+        int right = child(parent, i + 1);
+        int ln = count(left);
+        int rn = count(right);
+
+        setKey(left, ln, key(parent, i));
+        setChild(left, ln + 1, child(right, 0));
+        setCount(left, ln + 1);
+
+        setKey(parent, i, key(right, 0));
+        for(int j = 0; j < rn - 1; j++) setKey(right, j, key(right, j + 1));
+        for(int j = 0; j < rn; j++) setChild(right, j, child(right, j + 1));
+        setChild(right, rn, NIL);
+        setCount(right, rn - 1);
+    }
+
+/*
+ * Merges the 2-node children at index i and i + 1 of parent, with the separator between them,
+ * into a single 4-node that keeps the left child's slot. The right child's slot is freed, and a
+ * root left without keys is replaced by the merged node. It returns the merged node.
+ */
+    private int mergeChildren(int parent, int i) {
+        int left = child(parent, i);
+        int right = child(parent, i + 1);
+        int pn = count(parent);
+
+        setKey(left, 1, key(parent, i));
+        setKey(left, 2, key(right, 0));
+        setChild(left, 2, child(right, 0));
+        setChild(left, 3, child(right, 1));
+        setCount(left, 3);
+
+        //close the gap in the parent
+        for(int j = i; j < pn - 1; j++){
+            setKey(parent, j, key(parent, j + 1));
+            setChild(parent, j + 1, child(parent, j + 2));
+        }
+        setChild(parent, pn, NIL);
+        setCount(parent, pn - 1);
+
+        release(right);
+
+        if(pn == 1){
+            //the root ran out of keys, so the tree gets one level shorter
+            release(parent);
+            root = left;
+        }
+
+        return left;
+    }
+
+/* Removes and returns the largest key in the subtree at slot, which must have at least two keys. */
+    private int removeLast(int slot) {
+        while(!isLeaf(slot)){
+            slot = fixChild(slot, count(slot));
+        }
+        int n = count(slot);
+        setCount(slot, n - 1);
+        return key(slot, n - 1);
+    }
+
+/* Removes and returns the smallest key in the subtree at slot, which must have at least two keys. */
+    private int removeFirst(int slot) {
+        while(!isLeaf(slot)){
+            slot = fixChild(slot, 0);
+        }
+        int value = key(slot, 0);
+        removeKey(slot, 0);
+        return value;
+    }
+
+    private void removeKey(int slot, int i) {
+        int n = count(slot);
+        for(int j = i; j < n - 1; j++) setKey(slot, j, key(slot, j + 1));
+        setCount(slot, n - 1);
+    }
+
+    private int indexOf(int slot, int value) {
+        int n = count(slot);
+        for(int i = 0; i < n; i++){
+            if(key(slot, i) == value) return i;
+        }
+        return -1;
+    }
+
+    private boolean isLeaf(int slot) {
+        return child(slot, 0) == NIL;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_BYTES + slot * RECORD_BYTES;
+    }
+
+    private int count(int slot) {
+        return buffer.getInt(offset(slot));
+    }
+
+    private void setCount(int slot, int count) {
+        buffer.putInt(offset(slot), count);
+    }
+
+    private int key(int slot, int i) {
+        return buffer.getInt(offset(slot) + KEYS + 4 * i);
+    }
+
+    private void setKey(int slot, int i, int key) {
+        buffer.putInt(offset(slot) + KEYS + 4 * i, key);
+    }
+
+    private int child(int slot, int i) {
+        return buffer.getInt(offset(slot) + CHILDREN + 4 * i);
+    }
+
+    private void setChild(int slot, int i, int child) {
+        buffer.putInt(offset(slot) + CHILDREN + 4 * i, child);
+    }
+
+/* Hands out an empty leaf slot, reusing freed slots before growing the file. */
+    private int allocate() {
+        int slot;
+        if(freeHead != NIL){
+            slot = freeHead;
+            freeHead = child(slot, 0);
+        }
+        else{
+            if(nextSlot == capacity){
+                long grown = Math.min(MAX_BYTES, HEADER_BYTES + 2L * capacity * RECORD_BYTES);
+                if(grown < (long) offset(nextSlot) + RECORD_BYTES){
+                    throw new IllegalStateException("MappedTwoFourTree file is full");
+                }
+                try{
+                    map(grown);
+                }
+                catch(IOException e){
+                    throw new IllegalStateException("Could not grow the MappedTwoFourTree file", e);
+                }
+            }
+            slot = nextSlot++;
+        }
+
+        setCount(slot, 0);
+        for(int i = 0; i < 4; i++) setChild(slot, i, NIL);
+        return slot;
+    }
+
+    private void release(int slot) {
+        setCount(slot, 0);
+        setChild(slot, 0, freeHead);
+        freeHead = slot;
+    }
+
+/* Maps the first length bytes of the file, growing it if it is shorter. */
+    private void map(long length) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        capacity = (int) ((length - HEADER_BYTES) / RECORD_BYTES);
+    }
+
+    private void writeHeader() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, root);
+        buffer.putInt(12, size);
+        buffer.putInt(16, nextSlot);
+        buffer.putInt(20, freeHead);
+    }
+
+    private void readHeader(Path file) throws IOException {
+        if(buffer.getInt(0) != MAGIC){
+            throw new IOException(file + " is not a MappedTwoFourTree file");
+        }
+        if(buffer.getInt(4) != VERSION){
+            throw new IOException(file + " has unsupported version " + buffer.getInt(4));
+        }
+        root = buffer.getInt(8);
+        size = buffer.getInt(12);
+        nextSlot = buffer.getInt(16);
+        freeHead = buffer.getInt(20);
+
+        if(nextSlot < 0 || nextSlot > capacity || root < NIL || root >= nextSlot || freeHead < NIL
+                || freeHead >= nextSlot || size < 0){
+            throw new IOException(file + " has a corrupt header");
+        }
+    }
+}
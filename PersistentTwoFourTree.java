@@ -0,0 +1,473 @@
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
+/*
+ * A 2-3-4 tree with the same addValue/hasValue/deleteValue contract as TwoFourTree that can hand
+ * out point-in-time snapshots in O(1).
+ *
+ * Nodes have no parent pointers, so a changed node can be copied without copying its children:
+ * the copy simply points at the same subtrees. Every node remembers the edit token of the tree
+ * version that created it, and the tree only changes nodes that carry its current token. Any
+ * other node is copied the first time a write steps into it, and the copy is linked into its
+ * (already copied) parent. snapshot() just hands out the current root and starts a new token,
+ * which freezes every existing node at once; the next writes then copy the paths they touch.
+ *
+ * As long as no snapshot is taken, every node carries the current token and writes change the
+ * tree in place. Old versions are plain garbage once no Snapshot refers to them any more.
+ *
+ * The algorithms are the top-down ones from PooledTwoFourTree: addValue splits full nodes
+ * before stepping into them and deleteValue rotates or merges 2-nodes before stepping into them,
+ * so the path that has to be copied is exactly the path that is walked.
+ */
+public class PersistentTwoFourTree {
+    private static final class Node {
+        final Object edit;                          // token of the tree version that may change this node.
+        int values = 0;
+        final int[] keys = new int[3];
+        final Node[] children;                      // null for leaves.
+
+        Node(Object edit, boolean isLeaf) {
+            this.edit = edit;
+            this.children = isLeaf ? null : new Node[4];
+        }
+
+        boolean isLeaf() {
+            return children == null;
+        }
+
+        //returns the index of the first key that isn't below the value.
+        int indexFor(int value) {
+            int i = 0;
+            while(i < values && keys[i] < value) i++;
+            return i;
+        }
+
+        boolean holds(int value, int i) {
+            return i < values && keys[i] == value;
+        }
+
+        Node copy(Object edit) {
+            Node copy = new Node(edit, isLeaf());
+            copy.values = values;
+            System.arraycopy(keys, 0, copy.keys, 0, 3);
+            if(children != null) System.arraycopy(children, 0, copy.children, 0, 4);
+            return copy;
+        }
+    }
+
+    private Node root = null;
+    private int size = 0;
+    private Object edit = new Object();             // replaced by every snapshot, which freezes all current nodes.
+    private long copies = 0;
+
+/* Takes an int and inserts it into the tree. Full nodes are split on the way down,
+ * so the value can always be placed once a leaf is reached.
+ * It returns true if the value was added and false if it was already in the tree.
+ */
+    public boolean addValue(int value) {
+
+        //if tree is empty we simply create the first item
+        if(root == null){
+            root = new Node(edit, true);
+            root.keys[0] = value;
+            root.values = 1;
+            size++;
+            return true;
+        }
+
+        //a full root is split first, which is the only way the tree grows taller
+        if(root.values == 3){
+            if(root.holds(value, root.indexFor(value))) return false;
+
+            Node newRoot = new Node(edit, false);
+            newRoot.children[0] = root;
+            root = newRoot;
+            splitChild(newRoot, 0);
+        }
+        else{
+            root = writable(root);
+        }
+
+        Node walker = root;
+
+        while(true){
+            int i = walker.indexFor(value);
+            if(walker.holds(value, i)) return false;
+
+            //a leaf here is never full, so shift the larger keys over and place the value
+            if(walker.isLeaf()){
+                insertAt(walker, i, value);
+                size++;
+                return true;
+            }
+
+            //split full children before we step into them
+            Node child = walker.children[i];
+            if(child.values == 3){
+                if(child.holds(value, child.indexFor(value))) return false;
+
+                splitChild(walker, i);
+                if(value > walker.keys[i]) i++;
+            }
+
+            walker = childForWrite(walker, i);
+        }
+    }
+
+/* This method checks to see if the tree has a certain value. Takes an int.
+ * It returns true if the value is in the tree and false otherwise.
+ */
+    public boolean hasValue(int value) {
+        return find(root, value);
+    }
+
+/* This method removes a value from the tree. It takes an int.
+ * It returns true if the value was removed and false otherwise. Every node we step into
+ * is first given a second key by rotating from or merging with a sibling, so the removal
+ * at the bottom never has to travel back up.
+ */
+    public boolean deleteValue(int value) {
+        if(root == null) return false;
+
+        root = writable(root);
+        Node walker = root;
+
+        while(true){
+            int i = walker.indexFor(value);
+
+            if(walker.holds(value, i)){
+
+                //at a leaf we can simply drop the key
+                if(walker.isLeaf()){
+                    removeAt(walker, i);
+                    //only the root leaf can run empty
+                    if(walker.values == 0) root = null;
+                    size--;
+                    return true;
+                }
+
+                //replace the value with its predecessor or successor if a child can spare one
+                if(walker.children[i].values >= 2){
+                    walker.keys[i] = removeLast(childForWrite(walker, i));
+                    size--;
+                    return true;
+                }
+                if(walker.children[i + 1].values >= 2){
+                    walker.keys[i] = removeFirst(childForWrite(walker, i + 1));
+                    size--;
+                    return true;
+                }
+
+                //otherwise pull the value down between its two 2-node children and continue there
+                walker = mergeChildren(walker, i);
+                continue;
+            }
+
+            if(walker.isLeaf()) return false;
+
+            walker = fixChild(walker, i);
+        }
+    }
+
+/* Returns the number of values in the tree. */
+    public int size() {
+        return size;
+    }
+
+/* Returns how many nodes writes have copied because a snapshot still shared them. */
+    public long copies() {
+        return copies;
+    }
+
+/*
+ * Returns a read-only view of the tree as it is now. It costs the same whatever the size of the
+ * tree, and later writes to the tree never show through it.
+ */
+    public Snapshot snapshot() {
+        edit = new Object();
+        return new Snapshot(root, size);
+    }
+
+/*
+ * This method prints the tree starting at the root, indenting each level like
+ * TwoFourTree.printInOrder. It will do nothing if root is null.
+ */
+    public void printInOrder() {
+        if(root != null) printInOrder(root, 0);
+    }
+
+    private static void printInOrder(Node node, int indent) {
+        for(int i = 0; i <= node.values; i++){
+            if(!node.isLeaf()) printInOrder(node.children[i], indent + 1);
+            if(i == node.values) break;
+            for(int j = 0; j < indent; j++) System.out.printf("  ");
+            System.out.printf("%d\n", node.keys[i]);
+        }
+    }
+
+/*
+ * A frozen version of a PersistentTwoFourTree. It can be searched and iterated from any number of
+ * threads while the tree it came from keeps changing, and keeps its nodes alive until it is dropped.
+ */
+    public static class Snapshot implements Iterable<Integer> {
+        private final Node root;
+        private final int size;
+
+        private Snapshot(Node root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        public boolean hasValue(int value) {
+            return find(root, value);
+        }
+
+        public int size() {
+            return size;
+        }
+
+/* Calls action with every value in the snapshot between lo and hi, both included, in order. */
+        public void forEachInRange(int lo, int hi, IntConsumer action) {
+            if(root != null && lo <= hi) forEachInRange(root, lo, hi, action);
+        }
+
+        private static void forEachInRange(Node node, int lo, int hi, IntConsumer action) {
+            int i = node.indexFor(lo);
+            while(true){
+                if(!node.isLeaf()) forEachInRange(node.children[i], lo, hi, action);
+                if(i == node.values || node.keys[i] > hi) return;
+                action.accept(node.keys[i]);
+                i++;
+            }
+        }
+
+/* Returns the values of the snapshot in ascending order. */
+        public PrimitiveIterator.OfInt iterator() {
+            return new PrimitiveIterator.OfInt() {
+                //the path from the root to the next value, and where we are in each node on it
+                private final Node[] nodes = new Node[64];
+                private final int[] positions = new int[64];
+                private int depth = -1;
+
+                {
+                    if(root != null) descendLeft(root);
+                }
+
+                private void descendLeft(Node node) {
+                    while(true){
+                        nodes[++depth] = node;
+                        positions[depth] = 0;
+                        if(node.isLeaf()) return;
+                        node = node.children[0];
+                    }
+                }
+
+                public boolean hasNext() {
+                    return depth >= 0;
+                }
+
+                public int nextInt() {
+                    if(depth < 0) throw new NoSuchElementException();
+
+                    Node node = nodes[depth];
+                    int value = node.keys[positions[depth]++];
+
+                    //step into the subtree right of the value, or climb past finished nodes
+                    if(!node.isLeaf()){
+                        descendLeft(node.children[positions[depth]]);
+                    }
+                    else{
+                        while(depth >= 0 && positions[depth] == nodes[depth].values) depth--;
+                    }
+                    return value;
+                }
+            };
+        }
+    }
+
+    private static boolean find(Node walker, int value) {
+        while(walker != null){
+            int i = walker.indexFor(value);
+            if(walker.holds(value, i)) return true;
+            if(walker.isLeaf()) return false;
+            walker = walker.children[i];
+        }
+        return false;
+    }
+
+/* Returns node itself if this version of the tree may change it, and a copy that it may change otherwise. */
+    private Node writable(Node node) {
+        if(node.edit == edit) return node;
+        copies++;
+        return node.copy(edit);
+    }
+
+/* Makes the child at index i of a writable parent writable, links it in, and returns it. */
+    private Node childForWrite(Node parent, int i) {
+        Node child = writable(parent.children[i]);
+        parent.children[i] = child;
+        return child;
+    }
+
+/*
+ * Splits the full child at index i of parent into two 2-nodes and pushes the child's middle key
+ * up into parent. The (possibly copied) full child keeps the left half. The parent must be
+ * writable and not full.
+ */
+    private void splitChild(Node parent, int i) {
+        Node full = childForWrite(parent, i);
+        Node sibling = new Node(edit, full.isLeaf());
+
+        //the right half takes the largest key and the two rightmost children
+        sibling.keys[0] = full.keys[2];
+        sibling.values = 1;
+        if(!full.isLeaf()){
+            sibling.children[0] = full.children[2];
+            sibling.children[1] = full.children[3];
+            full.children[2] = null;
+            full.children[3] = null;
+        }
+
+        int middle = full.keys[1];
+        full.values = 1;
+
+        //make room in the parent for the middle key and the new child
+        for(int j = parent.values; j > i; j--){
+            parent.keys[j] = parent.keys[j - 1];
+            parent.children[j + 1] = parent.children[j];
+        }
+        parent.keys[i] = middle;
+        parent.children[i + 1] = sibling;
+        parent.values++;
+    }
+
+/*
+ * Makes sure the child at index i of parent has at least two keys before we descend into it,
+ * rotating from a sibling when one can spare a key and merging with one otherwise.
+ * It returns the writable node to continue the descent at.
+ */
+    private Node fixChild(Node parent, int i) {
+        if(parent.children[i].values >= 2) return childForWrite(parent, i);
+
+        Node leftSibling = (i > 0) ? parent.children[i - 1] : null;
+        Node rightSibling = (i < parent.values) ? parent.children[i + 1] : null;
+
+        if(leftSibling != null && leftSibling.values >= 2){
+            rotateRight(parent, i - 1);
+            return parent.children[i];
+        }
+        if(rightSibling != null && rightSibling.values >= 2){
+            rotateLeft(parent, i);
+            return parent.children[i];
+        }
+        if(rightSibling != null){
+            return mergeChildren(parent, i);
+        }
+        return mergeChildren(parent, i - 1);
+    }
+
+/* Moves the separator at index i of parent down into its right child, and the largest key of
+ * the left child up to replace it. The left child's rightmost subtree moves across with it. */
+    private void rotateRight(Node parent, int i) {
+        Node left = childForWrite(parent, i);
+        Node right = childForWrite(parent, i + 1);
+        int ln = left.values;
+
+        for(int j = right.values; j > 0; j--) right.keys[j] = right.keys[j - 1];
+        right.keys[0] = parent.keys[i];
+        if(!right.isLeaf()){
+            for(int j = right.values + 1; j > 0; j--) right.children[j] = right.children[j - 1];
+            right.children[0] = left.children[ln];
+            left.children[ln] = null;
+        }
+        right.values++;
+
+        parent.keys[i] = left.keys[ln - 1];
+        left.values--;
+    }
+
+/* Moves the separator at index i of parent down into its left child, and the smallest key of
+ * the right child up to replace it. The right child's leftmost subtree moves across with it. */
+    private void rotateLeft(Node parent, int i) {
+        Node left = childForWrite(parent, i);
+        Node right = childForWrite(parent, i + 1);
+        int ln = left.values;
+        int rn = right.values;
+
+        left.keys[ln] = parent.keys[i];
+        parent.keys[i] = right.keys[0];
+        for(int j = 0; j < rn - 1; j++) right.keys[j] = right.keys[j + 1];
+        if(!left.isLeaf()){
+            left.children[ln + 1] = right.children[0];
+            for(int j = 0; j < rn; j++) right.children[j] = right.children[j + 1];
+            right.children[rn] = null;
+        }
+        left.values++;
+        right.values--;
+    }
+
+/*
+ * Merges the 2-node children at index i and i + 1 of parent, with the separator between them,
+ * into a single 4-node in place of the left child. The right child is only read, so a snapshot
+ * that shares it keeps it as it was. A root left without keys is replaced by the merged node.
+ * It returns the merged node.
+ */
+    private Node mergeChildren(Node parent, int i) {
+        Node left = childForWrite(parent, i);
+        Node right = parent.children[i + 1];
+
+        left.keys[1] = parent.keys[i];
+        left.keys[2] = right.keys[0];
+        if(!left.isLeaf()){
+            left.children[2] = right.children[0];
+            left.children[3] = right.children[1];
+        }
+        left.values = 3;
+
+        //close the gap in the parent
+        for(int j = i; j < parent.values - 1; j++){
+            parent.keys[j] = parent.keys[j + 1];
+            parent.children[j + 1] = parent.children[j + 2];
+        }
+        parent.children[parent.values] = null;
+        parent.values--;
+
+        if(parent.values == 0){
+            //the root ran out of keys, so the tree gets one level shorter
+            root = left;
+        }
+
+        return left;
+    }
+
+/* Removes and returns the largest key in the subtree at the writable node, which must have at least two keys. */
+    private int removeLast(Node node) {
+        while(!node.isLeaf()){
+            node = fixChild(node, node.values);
+        }
+        node.values--;
+        return node.keys[node.values];
+    }
+
+/* Removes and returns the smallest key in the subtree at the writable node, which must have at least two keys. */
+    private int removeFirst(Node node) {
+        while(!node.isLeaf()){
+            node = fixChild(node, 0);
+        }
+        int value = node.keys[0];
+        removeAt(node, 0);
+        return value;
+    }
+
+    private static void insertAt(Node node, int i, int value) {
+        for(int j = node.values; j > i; j--) node.keys[j] = node.keys[j - 1];
+        node.keys[i] = value;
+        node.values++;
+    }
+
+    private static void removeAt(Node node, int i) {
+        for(int j = i; j < node.values - 1; j++) node.keys[j] = node.keys[j + 1];
+        node.values--;
+    }
+}
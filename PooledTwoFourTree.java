@@ -0,0 +1,492 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/*
+ * A self-balancing 2-3-4 tree that stores its nodes in parallel primitive arrays instead of
+ * one object per node. Every node is an int slot id: its keys live at keys[slot * 3 ...],
+ * its children at children[slot * 4 ...] and its key count at counts[slot]. A slot is a leaf
+ * iff its first child is NIL. Slots freed by merges are chained through their first child
+ * and handed out again before the arrays grow.
+ *
+ * It has the same addValue/hasValue/deleteValue contract as TwoFourTree, and is normally
+ * selected with new TwoFourTree(TwoFourTree.Storage.POOL).
+ */
+public class PooledTwoFourTree {
+    private static final int NIL = -1;
+
+    private int[] keys;
+    private int[] children;
+    private byte[] counts;
+
+    private int root = NIL;
+    private int nextSlot = 0;                       // first slot that has never been handed out.
+    private int freeHead = NIL;                     // first slot of the free chain.
+    private int size = 0;
+
+/* This is the constructor. It takes a guess at how many keys the tree will hold. */
+    public PooledTwoFourTree(int expectedKeys) {
+        //a random tree averages a little under two keys per node
+        int slots = Math.max(16, expectedKeys / 2);
+        keys = new int[slots * 3];
+        children = new int[slots * 4];
+        counts = new byte[slots];
+    }
+
+    public PooledTwoFourTree() {
+        this(16);
+    }
+
+/* Takes an int and inserts it into the tree. Full nodes are split on the way down,
+ * so the value can always be placed once a leaf is reached.
+ * It returns true if the value was added and false if it was already in the tree.
+ */
+    public boolean addValue(int value) {
+
+        //if tree is empty we simply create the first item
+        if(root == NIL){
+            root = allocate();
+            keys[root * 3] = value;
+            counts[root] = 1;
+            size++;
+            return true;
+        }
+
+        //a full root is split first, which is the only way the tree grows taller
+        if(counts[root] == 3){
+            if(indexOf(root, value) >= 0) return false;
+
+            int oldRoot = root;
+            root = allocate();
+            children[root * 4] = oldRoot;
+            splitChild(root, 0);
+        }
+
+        int walker = root;
+
+        while(true){
+            int n = counts[walker];
+            int base = walker * 3;
+
+            //find the first key that isn't smaller than the value
+            int i = 0;
+            while(i < n && keys[base + i] < value) i++;
+
+            if(i < n && keys[base + i] == value) return false;
+
+            //a leaf here is never full, so shift the larger keys over and place the value
+            if(isLeaf(walker)){
+                for(int j = n; j > i; j--) keys[base + j] = keys[base + j - 1];
+                keys[base + i] = value;
+                counts[walker] = (byte) (n + 1);
+                size++;
+                return true;
+            }
+
+            int child = children[walker * 4 + i];
+
+            //split full children before we step into them
+            if(counts[child] == 3){
+                if(indexOf(child, value) >= 0) return false;
+
+                splitChild(walker, i);
+                if(value > keys[base + i]) i++;
+                child = children[walker * 4 + i];
+            }
+
+            walker = child;
+        }
+    }
+
+/* This method checks to see if the tree has a certain value. Takes an int.
+ * It returns true if the value is in the tree and false otherwise.
+ */
+    public boolean hasValue(int value) {
+        int walker = root;
+
+        while(walker != NIL){
+            int n = counts[walker];
+            int base = walker * 3;
+
+            int i = 0;
+            while(i < n && keys[base + i] < value) i++;
+
+            if(i < n && keys[base + i] == value) return true;
+
+            walker = children[walker * 4 + i];
+        }
+
+        return false;
+    }
+
+/* This method removes a value from the tree. It takes an int.
+ * It returns true if the value was removed and false otherwise. Every node we step into
+ * is first given a second key by rotating from or merging with a sibling, so the removal
+ * at the bottom never has to travel back up.
+ */
+    public boolean deleteValue(int value) {
+        int walker = root;
+
+        while(walker != NIL){
+            int n = counts[walker];
+            int base = walker * 3;
+
+            int i = 0;
+            while(i < n && keys[base + i] < value) i++;
+
+            if(i < n && keys[base + i] == value){
+
+                //at a leaf we can simply drop the key
+                if(isLeaf(walker)){
+                    removeKey(walker, i);
+                    if(counts[walker] == 0){
+                        //only the root leaf can run empty
+                        release(walker);
+                        root = NIL;
+                    }
+                    size--;
+                    return true;
+                }
+
+                int left = children[walker * 4 + i];
+                int right = children[walker * 4 + i + 1];
+
+                //replace the value with its predecessor or successor if a child can spare one
+                if(counts[left] >= 2){
+                    keys[base + i] = removeLast(left);
+                    size--;
+                    return true;
+                }
+                if(counts[right] >= 2){
+                    keys[base + i] = removeFirst(right);
+                    size--;
+                    return true;
+                }
+
+                //otherwise pull the value down between its two 2-node children and continue there
+                walker = mergeChildren(walker, i);
+                continue;
+            }
+
+            if(isLeaf(walker)) return false;
+
+            walker = fixChild(walker, i);
+        }
+
+        return false;
+    }
+
+/* Returns the number of values in the tree. */
+    public int size() {
+        return size;
+    }
+
+/* Returns the smallest value in the tree. It throws NoSuchElementException if the tree is empty. */
+    public int first() {
+        if(root == NIL) throw new NoSuchElementException("The tree is empty");
+        int slot = root;
+        while(!isLeaf(slot)) slot = children[slot * 4];
+        return keys[slot * 3];
+    }
+
+/* Returns the largest value in the tree. It throws NoSuchElementException if the tree is empty. */
+    public int last() {
+        if(root == NIL) throw new NoSuchElementException("The tree is empty");
+        int slot = root;
+        while(!isLeaf(slot)) slot = children[slot * 4 + counts[slot]];
+        return keys[slot * 3 + counts[slot] - 1];
+    }
+
+/* Returns the largest value at or below the given one. It throws NoSuchElementException if there is none. */
+    public int floor(int value) {
+        return below(value, true);
+    }
+
+/* Returns the largest value strictly below the given one. It throws NoSuchElementException if there is none. */
+    public int lower(int value) {
+        return below(value, false);
+    }
+
+/* Returns the smallest value at or above the given one. It throws NoSuchElementException if there is none. */
+    public int ceiling(int value) {
+        return above(value, true);
+    }
+
+/* Returns the smallest value strictly above the given one. It throws NoSuchElementException if there is none. */
+    public int higher(int value) {
+        return above(value, false);
+    }
+
+/*
+ * Finds the largest value below the given one, or at it if inclusive, in one descent. Every slot
+ * on the way has its last key below the given one as a candidate, and the ones further down are
+ * closer.
+ */
+    private int below(int value, boolean inclusive) {
+        int walker = root;
+        boolean found = false;
+        int best = 0;
+        while(walker != NIL){
+            int n = counts[walker];
+            int base = walker * 3;
+
+            int i = 0;
+            while(i < n && keys[base + i] < value) i++;
+
+            if(inclusive && i < n && keys[base + i] == value) return value;
+            if(i > 0){
+                best = keys[base + i - 1];
+                found = true;
+            }
+            walker = children[walker * 4 + i];
+        }
+
+        if(!found) throw new NoSuchElementException("No value " + (inclusive ? "at or below " : "below ") + value);
+        return best;
+    }
+
+/* Same as below, for the smallest value above the given one, or at it if inclusive. */
+    private int above(int value, boolean inclusive) {
+        int walker = root;
+        boolean found = false;
+        int best = 0;
+        while(walker != NIL){
+            int n = counts[walker];
+            int base = walker * 3;
+
+            int i = 0;
+            while(i < n && keys[base + i] < value) i++;
+
+            if(i < n && keys[base + i] == value){
+                if(inclusive) return value;
+                //everything above the value itself starts in the child to its right
+                i++;
+            }
+            if(i < n){
+                best = keys[base + i];
+                found = true;
+            }
+            walker = children[walker * 4 + i];
+        }
+
+        if(!found) throw new NoSuchElementException("No value " + (inclusive ? "at or above " : "above ") + value);
+        return best;
+    }
+
+/*
+ * This method prints the tree starting at the root, indenting each level like
+ * TwoFourTree.printInOrder. It will do nothing if root is NIL.
+ */
+    public void printInOrder() {
+        if(root != NIL) printInOrder(root, 0);
+    }
+
+    private void printInOrder(int slot, int indent) {
+        int n = counts[slot];
+        for(int i = 0; i <= n; i++){
+            if(!isLeaf(slot)) printInOrder(children[slot * 4 + i], indent + 1);
+            if(i == n) break;
+            for(int j = 0; j < indent; j++) System.out.printf("  ");
+            System.out.printf("%d\n", keys[slot * 3 + i]);
+        }
+    }
+
+/*
+ * Splits the full child at index i of parent into two 2-nodes and pushes the child's middle key
+ * up into parent. The full child keeps its slot as the left half. The parent must not be full.
+ */
+    private void splitChild(int parent, int i) {
+        int full = children[parent * 4 + i];
+        int sibling = allocate();
+        int pBase = parent * 3;
+        int pn = counts[parent];
+
+        //the right half takes the largest key and the two rightmost children
+        keys[sibling * 3] = keys[full * 3 + 2];
+        children[sibling * 4] = children[full * 4 + 2];
+        children[sibling * 4 + 1] = children[full * 4 + 3];
+        counts[sibling] = 1;
+
+        int middle = keys[full * 3 + 1];
+        children[full * 4 + 2] = NIL;
+        children[full * 4 + 3] = NIL;
+        counts[full] = 1;
+
+        //make room in the parent for the middle key and the new child
+        for(int j = pn; j > i; j--){
+            keys[pBase + j] = keys[pBase + j - 1];
+            children[parent * 4 + j + 1] = children[parent * 4 + j];
+        }
+        keys[pBase + i] = middle;
+        children[parent * 4 + i + 1] = sibling;
+        counts[parent] = (byte) (pn + 1);
+    }
+
+/*
+ * Makes sure the child at index i of parent has at least two keys before we descend into it,
+ * rotating from a sibling when one can spare a key and merging with one otherwise.
+ * It returns the slot to continue the descent at.
+ */
+    private int fixChild(int parent, int i) {
+        int child = children[parent * 4 + i];
+        if(counts[child] >= 2) return child;
+
+        int pn = counts[parent];
+        int leftSibling = (i > 0) ? children[parent * 4 + i - 1] : NIL;
+        int rightSibling = (i < pn) ? children[parent * 4 + i + 1] : NIL;
+
+        if(leftSibling != NIL && counts[leftSibling] >= 2){
+            rotateRight(parent, i - 1);
+            return child;
+        }
+        if(rightSibling != NIL && counts[rightSibling] >= 2){
+            rotateLeft(parent, i);
+            return child;
+        }
+        if(rightSibling != NIL){
+            return mergeChildren(parent, i);
+        }
+        return mergeChildren(parent, i - 1);
+    }
+
+/* Moves the separator at index i of parent down into its right child, and the largest key of
+ * the left child up to replace it. The left child's rightmost subtree moves across with it. */
+    private void rotateRight(int parent, int i) {
+        int left = children[parent * 4 + i];
+        int right = children[parent * 4 + i + 1];
+        int ln = counts[left];
+        int rn = counts[right];
+
+        for(int j = rn; j > 0; j--) keys[right * 3 + j] = keys[right * 3 + j - 1];
+        for(int j = rn + 1; j > 0; j--) children[right * 4 + j] = children[right * 4 + j - 1];
+
+        keys[right * 3] = keys[parent * 3 + i];
+        children[right * 4] = children[left * 4 + ln];
+        counts[right] = (byte) (rn + 1);
+
+        keys[parent * 3 + i] = keys[left * 3 + ln - 1];
+        children[left * 4 + ln] = NIL;
+        counts[left] = (byte) (ln - 1);
+    }
+
+/* Moves the separator at index i of parent down into its left child, and the smallest key of
+ * the right child up to replace it. The right child's leftmost subtree moves across with it. */
+    private void rotateLeft(int parent, int i) {
+        int left = children[parent * 4 + i];
+        int right = children[parent * 4 + i + 1];
+        int ln = counts[left];
+        int rn = counts[right];
+
+        keys[left * 3 + ln] = keys[parent * 3 + i];
+        children[left * 4 + ln + 1] = children[right * 4];
+        counts[left] = (byte) (ln + 1);
+
+        keys[parent * 3 + i] = keys[right * 3];
+        for(int j = 0; j < rn - 1; j++) keys[right * 3 + j] = keys[right * 3 + j + 1];
+        for(int j = 0; j < rn; j++) children[right * 4 + j] = children[right * 4 + j + 1];
+        children[right * 4 + rn] = NIL;
+        counts[right] = (byte) (rn - 1);
+    }
+
+/*
+ * Merges the 2-node children at index i and i + 1 of parent, with the separator between them,
+ * into a single 4-node that keeps the left child's slot. The right child's slot is freed, and a
+ * root left without keys is replaced by the merged node. It returns the merged node.
+ */
+    private int mergeChildren(int parent, int i) {
+        int left = children[parent * 4 + i];
+        int right = children[parent * 4 + i + 1];
+        int pn = counts[parent];
+
+        keys[left * 3 + 1] = keys[parent * 3 + i];
+        keys[left * 3 + 2] = keys[right * 3];
+        children[left * 4 + 2] = children[right * 4];
+        children[left * 4 + 3] = children[right * 4 + 1];
+        counts[left] = 3;
+
+        //close the gap in the parent
+        for(int j = i; j < pn - 1; j++){
+            keys[parent * 3 + j] = keys[parent * 3 + j + 1];
+            children[parent * 4 + j + 1] = children[parent * 4 + j + 2];
+        }
+        children[parent * 4 + pn] = NIL;
+        counts[parent] = (byte) (pn - 1);
+
+        release(right);
+
+        if(counts[parent] == 0){
+            //the root ran out of keys, so the tree gets one level shorter
+            release(parent);
+            root = left;
+        }
+
+        return left;
+    }
+
+/* Removes and returns the largest key in the subtree at slot, which must have at least two keys. */
+    private int removeLast(int slot) {
+        while(!isLeaf(slot)){
+            slot = fixChild(slot, counts[slot]);
+        }
+        int n = counts[slot];
+        counts[slot] = (byte) (n - 1);
+        return keys[slot * 3 + n - 1];
+    }
+
+/* Removes and returns the smallest key in the subtree at slot, which must have at least two keys. */
+    private int removeFirst(int slot) {
+        while(!isLeaf(slot)){
+            slot = fixChild(slot, 0);
+        }
+        int value = keys[slot * 3];
+        removeKey(slot, 0);
+        return value;
+    }
+
+    private void removeKey(int slot, int i) {
+        int n = counts[slot];
+        for(int j = i; j < n - 1; j++) keys[slot * 3 + j] = keys[slot * 3 + j + 1];
+        counts[slot] = (byte) (n - 1);
+    }
+
+    private int indexOf(int slot, int value) {
+        for(int i = 0; i < counts[slot]; i++){
+            if(keys[slot * 3 + i] == value) return i;
+        }
+        return -1;
+    }
+
+    private boolean isLeaf(int slot) {
+        return children[slot * 4] == NIL;
+    }
+
+/* Hands out an empty leaf slot, reusing freed slots before growing the arrays. */
+    private int allocate() {
+        int slot;
+        if(freeHead != NIL){
+            slot = freeHead;
+            freeHead = children[slot * 4];
+        }
+        else{
+            if(nextSlot == counts.length){
+                int grown = counts.length * 2;
+                keys = Arrays.copyOf(keys, grown * 3);
+                children = Arrays.copyOf(children, grown * 4);
+                counts = Arrays.copyOf(counts, grown);
+            }
+            slot = nextSlot++;
+        }
+
+        counts[slot] = 0;
+        children[slot * 4] = NIL;
+        children[slot * 4 + 1] = NIL;
+        children[slot * 4 + 2] = NIL;
+        children[slot * 4 + 3] = NIL;
+        return slot;
+    }
+
+    private void release(int slot) {
+        counts[slot] = 0;
+        children[slot * 4] = freeHead;
+        freeHead = slot;
+    }
+}
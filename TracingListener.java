@@ -0,0 +1,66 @@
+import java.io.PrintStream;
+
+/*
+ * Prints every event of a TwoFourTree as it happens. This is what the old debugEnabled flag used
+ * to do, except that a tree now only pays for it while the tracer is attached:
+ *
+ *     tree.addListener(new TracingListener());
+ */
+public class TracingListener implements TreeEventListener {
+    private final PrintStream out;
+
+    public TracingListener(PrintStream out) {
+        this.out = out;
+    }
+
+    public TracingListener() {
+        this(System.out);
+    }
+
+    @Override
+    public void onDescend(Operation operation, int value, boolean result, int depth) {
+        out.printf("%s %d %s after visiting %d nodes.\n", operation, value, result ? "succeeded" : "failed", depth);
+    }
+
+    @Override
+    public void onSplit(int middleValue, int parentValues) {
+        if(parentValues == 1){
+            out.printf("Split the root, %d is the new root.\n", middleValue);
+        }
+        else{
+            out.printf("Split a 4-node, gave %d to a parent that now holds %d values.\n", middleValue, parentValues);
+        }
+    }
+
+    @Override
+    public void onRotate(int upValue, int downValue, int siblingValues) {
+        out.printf("Rotated %d down from the parent and %d up from a sibling that kept %d values.\n", downValue,
+                upValue, siblingValues);
+    }
+
+    @Override
+    public void onMerge(int downValue, int parentValues) {
+        if(parentValues == 0){
+            out.printf("Merged the root's children around %d; the merged node is the new root.\n", downValue);
+        }
+        else{
+            out.printf("Merged two 2-nodes around %d, the parent kept %d values.\n", downValue, parentValues);
+        }
+    }
+
+    @Override
+    public void onInsert(int value, int leafValues) {
+        out.printf("Placed %d in a leaf that now holds %d values.\n", value, leafValues);
+    }
+
+    @Override
+    public void onRemove(int value, int leafValues) {
+        out.printf("Took %d out of a leaf that now holds %d values.\n", value, leafValues);
+    }
+
+    @Override
+    public void onRebuild(long twoNodes, long threeNodes, long fourNodes, int height) {
+        out.printf("Tree rebuilt: height %d, %d 2-nodes, %d 3-nodes, %d 4-nodes.\n", height, twoNodes, threeNodes,
+                fourNodes);
+    }
+}
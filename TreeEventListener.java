@@ -0,0 +1,40 @@
+/*
+ * Receives the structural events of a TwoFourTree, for tracing, metrics or anything else that
+ * wants to watch the tree work. Attach one with TwoFourTree.addListener. Every method does nothing
+ * by default, so a listener only overrides what it cares about.
+ *
+ * A tree without listeners skips every hook with a single null check, and none of them sit
+ * inside a search loop, so the hot paths cost the same as if the hooks weren't there. Events
+ * are delivered on the thread that changed the tree, after the change is complete, and only
+ * carry values, never nodes, so a listener can't change the tree under its own feet.
+ */
+public interface TreeEventListener {
+    enum Operation {ADD, FIND, DELETE}
+
+/* An add, find or delete of value finished with result after visiting depth nodes on the way down. */
+    default void onDescend(Operation operation, int value, boolean result, int depth) {}
+
+/* A 4-node was split and its middle value pushed up into a parent that now holds parentValues
+ * values. A parentValues of 1 means the split node was the root and the tree grew a level. */
+    default void onSplit(int middleValue, int parentValues) {}
+
+/* A 2-node took downValue from its parent, which took upValue from a sibling of the 2-node.
+ * The sibling was left holding siblingValues values. */
+    default void onRotate(int upValue, int downValue, int siblingValues) {}
+
+/* Two 2-nodes were merged around downValue, which came out of a parent now holding parentValues
+ * values. A parentValues of 0 means the parent was the root and the tree lost a level. */
+    default void onMerge(int downValue, int parentValues) {}
+
+/* value was placed in a leaf that now holds leafValues values. A leafValues of 1 means the leaf
+ * is the new root of a tree that was empty. */
+    default void onInsert(int value, int leafValues) {}
+
+/* value was taken out of a leaf that now holds leafValues values, either because it was deleted
+ * or because it replaced a deleted value higher up. A leafValues of 0 means the tree is empty. */
+    default void onRemove(int value, int leafValues) {}
+
+/* The whole tree was replaced at once, by a bulk load or when the listener was added, and now
+ * has the given node mix and height. */
+    default void onRebuild(long twoNodes, long threeNodes, long fourNodes, int height) {}
+}
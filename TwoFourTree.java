@@ -1,24 +1,62 @@
 import java.nio.file.WatchEvent;
 import java.time.temporal.ValueRange;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.zip.CRC32;
 
 /*
  * A self-balancing 2-3-4 tree. Allows insertion, checking, and deletion. Primarily uses
  * ints for values.
  */
 public class TwoFourTree {
+    /*
+     * Where the tree keeps its nodes. NODES uses one TwoFourTreeItem object per node. POOL hands
+     * every operation to a PooledTwoFourTree, which keeps the nodes in parallel primitive arrays.
+     * It covers adding, finding and deleting, the batch versions of those, and first, last,
+     * floor, lower, ceiling, higher, pollFirst and pollLast. Everything that walks TwoFourTreeItem
+     * nodes throws UnsupportedOperationException on it instead: cursor and what is built on it
+     * (forEachInRange, countInRange, freeze and writeTo), addListener and enableMetrics, since
+     * the pooled engine reports no events, and enableFilter. The cache is accepted but never
+     * asked, and order statistics can't be asked for at all.
+     */
+    public enum Storage {
+        NODES,
+        POOL
+    }
+
+    //the value in every slot a node isn't using. No value is above it, which is what lets the
+    //branch-free indexFor count its way to the right index without looking at values first.
+    private static final int EMPTY = Integer.MAX_VALUE;
+
+/*
+ * Whether indexFor counts the values below the one it's given instead of comparing its way down
+ * a chain of branches. On random keys those branches go either way, so every level of a lookup
+ * pays for mispredictions; counting is three compares whose results are added, not jumped on.
+ * It is on unless the JVM is started with -DTwoFourTree.branchlessSearch=false, and being static
+ * and final, the JIT drops whichever path is not in use.
+ */
+    static final boolean BRANCHLESS_SEARCH =
+            Boolean.parseBoolean(System.getProperty("TwoFourTree.branchlessSearch", "true"));
+
     private class TwoFourTreeItem {
         int values = 1;
         int value1 = 0;                             // always exists.
-        int value2 = 0;                             // exists iff the node is a 3-node or 4-node.
-        int value3 = 0;                             // exists iff the node is a 4-node.
-        boolean isLeaf = true;
-        
-        TwoFourTreeItem parent = null;              // parent exists iff the node is not root.
-        TwoFourTreeItem leftChild = null;           // left and right child exist iff the note is a non-leaf.
-        TwoFourTreeItem rightChild = null;          
-        TwoFourTreeItem centerChild = null;         // center child exists iff the node is a non-leaf 3-node.
-        TwoFourTreeItem centerLeftChild = null;     // center-left and center-right children exist iff the node is a non-leaf 4-node.
-        TwoFourTreeItem centerRightChild = null;
+        int value2 = EMPTY;                         // exists iff the node is a 3-node or 4-node, EMPTY otherwise.
+        int value3 = EMPTY;                         // exists iff the node is a 4-node, EMPTY otherwise.
+
+        TwoFourTreeItem child0 = null;              // children 0 to values exist iff the node is a non-leaf,
+        TwoFourTreeItem child1 = null;              // so a node is a leaf iff child0 is null.
+        TwoFourTreeItem child2 = null;
+        TwoFourTreeItem child3 = null;
 
         public boolean isTwoNode() {
             return values == 1;
@@ -32,8 +70,96 @@ public class TwoFourTree {
             return values == 3;
         }
 
-        public boolean isRoot() {
-            return parent == null;
+        public boolean isLeaf() {
+            return child0 == null;
+        }
+
+        //turns a node that was let go into a fresh leaf holding one value, so it can be used again.
+        void reset(int value1) {
+            values = 1;
+            this.value1 = value1;
+            value2 = EMPTY;
+            value3 = EMPTY;
+            child0 = null;
+            child1 = null;
+            child2 = null;
+            child3 = null;
+        }
+
+        //returns true if the value is one of this node's values.
+        public boolean holds(int value) {
+            return value == value1 || (values >= 2 && value == value2) || (values == 3 && value == value3);
+        }
+
+        //returns the index of the first value that isn't below the given one, or values if they all are.
+        //it's also the index of the child to follow when the value isn't here.
+        public int indexFor(int value) {
+            if(BRANCHLESS_SEARCH){
+                //unused slots hold EMPTY, which the value is never above, so they add nothing
+                return ((value > value1) ? 1 : 0) + ((value > value2) ? 1 : 0) + ((value > value3) ? 1 : 0);
+            }
+            if(value <= value1) return 0;
+            if(values == 1 || value <= value2) return 1;
+            if(values == 2 || value <= value3) return 2;
+            return 3;
+        }
+
+        //returns the value at index i, counting from 0 on the left.
+        public int value(int i) {
+            if(i == 0) return value1;
+            return (i == 1) ? value2 : value3;
+        }
+
+        public void setValue(int i, int value) {
+            if(i == 0) value1 = value;
+            else if(i == 1) value2 = value;
+            else value3 = value;
+        }
+
+        //puts a value in at index i, moving the ones from i on a place to the right. The node can't be full.
+        public void insertValue(int i, int value) {
+            if(i == 0){
+                value3 = value2;
+                value2 = value1;
+                value1 = value;
+            }
+            else if(i == 1){
+                value3 = value2;
+                value2 = value;
+            }
+            else{
+                value3 = value;
+            }
+            values++;
+        }
+
+        //takes out the value at index i, moving the ones after it a place to the left, and returns it.
+        public int removeValue(int i) {
+            int removed = value(i);
+            if(i == 0){
+                value1 = value2;
+                value2 = value3;
+            }
+            else if(i == 1){
+                value2 = value3;
+            }
+            value3 = EMPTY;
+            values--;
+            return removed;
+        }
+
+        //returns the child at index i, counting from 0 on the left. It's null in a leaf.
+        public TwoFourTreeItem child(int i) {
+            if(i == 0) return child0;
+            if(i == 1) return child1;
+            return (i == 2) ? child2 : child3;
+        }
+
+        public void setChild(int i, TwoFourTreeItem child) {
+            if(i == 0) child0 = child;
+            else if(i == 1) child1 = child;
+            else if(i == 2) child2 = child;
+            else child3 = child;
         }
 
         public TwoFourTreeItem(int value1) {
@@ -58,142 +184,165 @@ public class TwoFourTree {
         }
 
         public void printInOrder(int indent) {
-            if(!isLeaf) leftChild.printInOrder(indent + 1);
-            printIndents(indent);
-            System.out.printf("%d\n", value1);
-            if(isThreeNode()) {
-                if(!isLeaf) {centerChild.printInOrder(indent + 1);}
-                printIndents(indent);
-                System.out.printf("%d\n", value2);
-            } else if(isFourNode()) {
-                if(!isLeaf) centerLeftChild.printInOrder(indent + 1);
+            for(int i = 0; i <= values; i++){
+                if(!isLeaf()) child(i).printInOrder(indent + 1);
+                if(i == values) break;
                 printIndents(indent);
-                System.out.printf("%d\n", value2);
-                if(!isLeaf) centerRightChild.printInOrder(indent + 1);
-                printIndents(indent);
-                System.out.printf("%d\n", value3);
+                System.out.printf("%d\n", value(i));
             }
-            if(!isLeaf) rightChild.printInOrder(indent + 1);
         }
     }
 
-    //This variable either enables or disables all print statements for debugging.
-    private boolean debugEnabled = false;    
+    //the node used when the tree keeps order statistics. It adds the number of values in its subtree.
+    private class CountedItem extends TwoFourTreeItem {
+        int count;
+
+        public CountedItem(int value1) {
+            super(value1);
+            count = 1;
+        }
+
+        public CountedItem(int value1, int value2) {
+            super(value1, value2);
+            count = 2;
+        }
+
+        public CountedItem(int value1, int value2, int value3) {
+            super(value1, value2, value3);
+            count = 3;
+        }
+    }
+
 
     TwoFourTreeItem root = null;
 
+    //the leftmost and rightmost leaves, so first and last never have to walk down. Null while the tree is empty.
+    private TwoFourTreeItem leftmost = null;
+    private TwoFourTreeItem rightmost = null;
+
+    //only set when the tree was built with Storage.POOL, in which case every call is handed to it.
+    private PooledTwoFourTree pool = null;
+
+    //when set, every node is a CountedItem so rank and select can skip whole subtrees.
+    private boolean orderStatistics = false;
+
+    private int size = 0;
+
+    //null without listeners, the listener itself with one, and a Broadcast with more. Every hook checks it for null first.
+    private TreeEventListener listener = null;
+    private TreeEventListener[] listeners = new TreeEventListener[0];
+
+    //only set while metrics are switched on, see enableMetrics.
+    private TwoFourTreeMetrics metrics = null;
+
+    //only set while the filter is switched on, see enableFilter.
+    private TwoFourTreeFilter filter = null;
+
+    //only set while the cache is switched on, see enableCache.
+    private TwoFourTreeCache cache = null;
+
+    private static final TreeEventListener.Operation ADD = TreeEventListener.Operation.ADD;
+    private static final TreeEventListener.Operation FIND = TreeEventListener.Operation.FIND;
+    private static final TreeEventListener.Operation DELETE = TreeEventListener.Operation.DELETE;
+
+    //addAll and deleteAll rebuild the whole tree once a batch is at least 1/REBUILD_RATIO of its size.
+    private static final int REBUILD_RATIO = 8;
+
+    //hasValues answers batches under BATCH_MIN keys, or any batch against a tree under BATCH_MIN_TREE
+    //values, one hasValue at a time: sorting costs more than the shared walk saves there, because a
+    //tree that small stays in cache. hasValuesSorted has no sort to pay for and only needs SORTED_BATCH_MIN.
+    private static final int BATCH_MIN = 1024;
+    private static final int BATCH_MIN_TREE = 16384;
+    private static final int SORTED_BATCH_MIN = 256;
+
+    //enableCache() makes room for this many values, enough for the few thousand keys skewed lookups keep hitting.
+    private static final int DEFAULT_CACHE_CAPACITY = 8192;
+
+    //the nodes an add or delete stepped through, root first, so their subtree counts can be fixed
+    //without parent pointers. Only there when the tree keeps order statistics.
+    private TwoFourTreeItem[] path = null;
+
+    //nodes let go by merges wait here for the next splits. It is bounded, so a long run of deletes can't pin memory.
+    private static final int FREE_LIMIT = 64;
+    private final TwoFourTreeItem[] free = new TwoFourTreeItem[FREE_LIMIT];
+    private int freeCount = 0;
 
 /* Takes an int and inserts it into a self-balancing 2-3-4 tree.
- * It returns true if the insert was a success. Will likely break tree if
- * value is already in it.   */
+ * It returns true if the insert was a success, and false without touching the
+ * tree if the value was already in it. Every node on the way down is checked for
+ * the value, so no separate hasValue call is needed first. */
     public boolean addValue(int value) {
 
-        if(debugEnabled) System.out.printf("Starting addValue with value: %d\n", value);
+        if(pool != null) return pool.addValue(value);
+
 
         //if tree is empty we simply create the first item
         if(root == null){ 
-            root = new TwoFourTreeItem(value);
-            if(debugEnabled) System.out.println("Tree is empty, adding root with value.");
-            return true;
+            root = newItem(value);
+            leftmost = root;
+            rightmost = root;
+            size++;
+            if(filter != null) filterAdded(value);
+            if(cache != null) cache.update(value, true);
+            if(listener != null) listener.onInsert(value, 1);
+            return descended(ADD, value, 1, true);
+        }
+
+        //a full root is split first, which is the only way the tree grows taller
+        if(root.isFourNode()){
+            if(root.holds(value)) return descended(ADD, value, 1, false);
+
+            TwoFourTreeItem grown = newItem(EMPTY);
+            grown.values = 0;
+            grown.child0 = root;
+            root = grown;
+            splitChild(root, 0);
         }
     
         //otherwise, we find a location and descend to place the value
         TwoFourTreeItem walker = root;
+        int depth = 1;
+        if(path != null) path[0] = walker;
+        int i;
         
-        //split at 4-nodes and stop at leafs
-        while(!walker.isLeaf || walker.isFourNode()){
-            
-            //for four nodes, we do a split
-            if(walker.isFourNode()){
+        //split at 4-nodes before stepping into them and stop at leafs
+        while(true){
 
-                if(debugEnabled) System.out.println("Reached a 4-node during addValue.");
-
-                walker = splitFourNode(walker, value);
+            //find where the value would go, which also tells us if it's already here
+            i = walker.indexFor(value);
+            if(i < walker.values && walker.value(i) == value){
+                return descended(ADD, value, depth, false);
             }
-            
-            //for three nodes, we move to a left, middle, or right child
-            else if(walker.isThreeNode()){
 
-                if(debugEnabled) System.out.printf("Arrived at 3 node (%d %d %d).\n", walker.value1, walker.value2, walker.value3);
+            if(walker.isLeaf()) break;
 
-                if(value < walker.value1){
-                    //move to the left child
-                    walker = walker.leftChild;
-                    if(debugEnabled) System.out.println("Going left.");
-                }
-                else if(value < walker.value2){
-                    //move to center child
-                    walker = walker.centerChild;
-                    if(debugEnabled) System.out.println("Going down.");
-                }
-                else{
-                    //move to right child
-                    walker = walker.rightChild;
-                    if(debugEnabled) System.out.println("Going right.");
-                }
-            }
-
-            //for two nodes, we move to left or right child
-            else{
-
-                if(debugEnabled) System.out.printf("Arrived at 2 node (%d %d %d).\n", walker.value1, walker.value2, walker.value3);
-
-                if(value < walker.value1){
-                    //move to the left child
-                    walker = walker.leftChild;
-                    if(debugEnabled) System.out.println("Going left.");
-                }
-                else{
-                    //move to right child
-                    walker = walker.rightChild;
-                    if(debugEnabled) System.out.println("Going right.");
-                }
-            }
-        }
+            TwoFourTreeItem child = walker.child(i);
 
-        //now, we've reached a non-full leaf node, meaning we can insert our value
+            //for four nodes, we check for the value before a split can move it, then split
+            if(child.isFourNode()){
+                if(child.holds(value)) return descended(ADD, value, depth + 1, false);
 
-        if(debugEnabled) System.out.printf("Placing (%d) at node (%d %d %d).\n", value, walker.value1, walker.value2, walker.value3);
-
-        //if its a three node leaf, insert into left, right, or middle
-        if(walker.isThreeNode()){
-            if(value < walker.value1){
-                //update the values with new value at lowest
-                walker.value3 = walker.value2;
-                walker.value2 = walker.value1;
-                walker.value1 = value;
-            }
-            else if(value < walker.value2){
-                //update the values with new value in middle
-                walker.value3 = walker.value2;
-                walker.value2 = value;
-            }
-            else{
-                //update the values with new value at highest
-                walker.value3 = value;
+                splitChild(walker, i);
+                if(value > walker.value(i)) i++;
+                child = walker.child(i);
             }
 
-            walker.values = 3;
+            walker = child;
+            depth++;
+            if(path != null) path[depth - 1] = walker;
         }
 
-        //othwerise, its a two node leaf, so insert at left or right
-        else{
-            if(value < walker.value1){
-                //update the value with new value at lowest
-                walker.value2 = walker.value1;
-                walker.value1 = value;
-            }
-            else{
-                //update the values with new value at highest
-                walker.value2 = value;
-            }
+        //now, we've reached a non-full leaf node that doesn't hold the value, so it goes in at i
+        walker.insertValue(i, value);
 
-            walker.values = 2;
-        }
+        if(orderStatistics) adjustCounts(depth, 1);
+        if(listener != null) listener.onInsert(value, walker.values);
+        size++;
+        if(filter != null) filterAdded(value);
+        if(cache != null) cache.update(value, true);
 
-        if(debugEnabled) System.out.printf("Value successfully added: (%d %d %d)\n", walker.value1, walker.value2, walker.value3);
 
-        return true;
+        return descended(ADD, value, depth, true);
     }
 
 /* This method checks to see if the tree has a certain value. Takes an int.
@@ -201,393 +350,329 @@ public class TwoFourTree {
  */
     public boolean hasValue(int value) {
 
-        if(debugEnabled) System.out.printf("Starting search for value: %d.\n", value);
+        if(pool != null) return pool.hasValue(value);
+
+        //a hot value's answer may be cached, and then there's nothing to walk
+        if(cache != null){
+            int cached = cache.lookup(value);
+            if(cached != TwoFourTreeCache.UNKNOWN) return descended(FIND, value, 0, cached == TwoFourTreeCache.FOUND);
+        }
+
+        //a value the filter has never seen can't be here either, and the filter is as quick as the cache
+        if(filter != null && !filter.mightContain(value)) return descended(FIND, value, 0, false);
         
         TwoFourTreeItem walker = root;
-        boolean locationFound = false;
+        int depth = 0;
 
         //search move down the tree and compare value at the nodes
         while(walker != null){
+            depth++;
 
             //check data values
-            if(walker.isTwoNode()){
-                locationFound = (value == walker.value1);
-            }
-            else if(walker.isThreeNode()){
-                locationFound = (value == walker.value1 || value == walker.value2);
-            }
-            else{
-                locationFound = (value == walker.value1 || value == walker.value2 || value == walker.value3);
+            int i = walker.indexFor(value);
+            if(i < walker.values && walker.value(i) == value){
+                return cachedFind(value, depth, true);
             }
 
-            if(locationFound){
-                if(debugEnabled) System.out.printf("Successfully found value (%d) at node (%d %d %d).\n", value, walker.value1, walker.value2, walker.value3);
-                return true;
+            //move to child if not found
+            walker = walker.child(i);
+        }
+
+        //if we reach this point, we never found the item
+        if(filter != null) filter.falsePositive();
+        return cachedFind(value, depth, false);
+    }
+
+
+/*
+ * This method looks up a whole batch of values at once. It takes the values in any order
+ * and sets out[i] to whether keys[i] is in the tree. The batch is sorted first (as packed
+ * longs, so nothing is boxed), then the tree is walked once in key order: neighbouring keys
+ * share the descent down to the node where they part ways, and every subtree is finished
+ * before the walk moves right. Small batches and small trees are cheaper to look up one key
+ * at a time, so they are.
+ */
+    public void hasValues(int[] keys, boolean[] out) {
+        if(out.length < keys.length){
+            throw new IllegalArgumentException("out must have room for every key");
+        }
+        if(keys.length < BATCH_MIN || size() < BATCH_MIN_TREE){
+            for(int i = 0; i < keys.length; i++){
+                out[i] = hasValue(keys[i]);
             }
+            return;
+        }
 
-            //move to child if not found
-            if(walker.isTwoNode()){
-                if(value < walker.value1){
-                    walker = walker.leftChild;
-                }
-                else{
-                    walker = walker.rightChild;
-                }
+        //each long holds a key in its upper half and its batch position in the lower half
+        long[] packed = new long[keys.length];
+        for(int i = 0; i < keys.length; i++){
+            packed[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(packed);
+
+        int[] sorted = new int[keys.length];
+        int[] order = new int[keys.length];
+        for(int i = 0; i < keys.length; i++){
+            sorted[i] = (int) (packed[i] >> 32);
+            order[i] = (int) packed[i];
+        }
+
+        hasValuesSorted(sorted, order, 0, keys.length, out);
+    }
+
+/*
+ * This method is the batch lookup for keys that are already sorted ascending (duplicates are
+ * fine). It sets out[i] to whether keys[i] is in the tree for every i in [from, to). Runs of
+ * fewer than SORTED_BATCH_MIN keys are looked up one key at a time.
+ */
+    public void hasValuesSorted(int[] keys, int from, int to, boolean[] out) {
+        hasValuesSorted(keys, null, from, to, out);
+    }
+
+    private void hasValuesSorted(int[] keys, int[] order, int from, int to, boolean[] out) {
+        for(int i = from; i < to; i++){
+            out[(order == null) ? i : order[i]] = false;
+        }
+
+        //the pooled engine has no shared walk, and a short run shares too little of its descents to pay
+        //for one, so both are answered one key at a time
+        if(pool != null || to - from < SORTED_BATCH_MIN){
+            for(int i = from; i < to; i++){
+                out[(order == null) ? i : order[i]] = hasValue(keys[i]);
             }
-            else if(walker.isThreeNode()){
-                if(value < walker.value1){
-                    walker = walker.leftChild;
-                }
-                else if(value < walker.value2){
-                    walker = walker.centerChild;
-                }
-                else{
-                    walker = walker.rightChild;
+            return;
+        }
+
+        if(root != null && from < to) findBatch(root, keys, order, from, to, out);
+    }
+
+/*
+ * Marks which of the sorted keys[from, to) are in the subtree at node. The run is cut at each
+ * of the node's values, exact matches are marked, and each piece in between is handed to the
+ * child that covers it, so a child is only visited if some key actually falls inside it.
+ */
+    private void findBatch(TwoFourTreeItem node, int[] keys, int[] order, int from, int to, boolean[] out) {
+        int walker = from;
+
+        for(int i = 0; i <= node.values && walker < to; i++){
+            int start = walker;
+
+            //the keys below this value belong to the child on its left
+            if(i < node.values){
+                int value = node.value(i);
+                while(walker < to && keys[walker] < value) walker++;
+
+                if(!node.isLeaf() && start < walker) findBatch(node.child(i), keys, order, start, walker, out);
+
+                while(walker < to && keys[walker] == value){
+                    out[(order == null) ? walker : order[walker]] = true;
+                    walker++;
                 }
             }
-            else{
-                if(value < walker.value1){
-                    walker = walker.leftChild;
-                }
-                else if(value < walker.value2){
-                    walker = walker.centerLeftChild;
-                }
-                else if (value < walker.value3){
-                    walker = walker.centerRightChild;
-                }
-                else{
-                    walker = walker.rightChild;
-                }
+            //whatever is left is above every value, so it goes to the rightmost child
+            else if(!node.isLeaf()){
+                findBatch(node.child(i), keys, order, start, to, out);
             }
-
         }
-
-        //if we reach this point, we never found the item
-        if(debugEnabled) System.out.println("Failed to find value.");
-        return false;
     }
 
-
 /* This method removes a value from the tree. It takes an int.
- * It returns true if the value was removed and false otherwise.
- * It will likely fail if the tree contains duplicates.
+ * It returns true if the value was removed and false otherwise. Every node we step into
+ * is first given a second value by rotating from or merging with a sibling, so the removal
+ * at the bottom never has to travel back up.
  */
     public boolean deleteValue(int value) {
 
-        if(debugEnabled) System.out.printf("Starting delete for value: %d.\n", value);
-        
+        if(pool != null) return pool.deleteValue(value);
+
 
-        //After leaving root node, we set the siblings every time we descend
         TwoFourTreeItem walker = root;
-        TwoFourTreeItem rightSibling = null;
-        TwoFourTreeItem leftSibling = null;
-        boolean locationFound = false;
+        int depth = 0;
 
         //search move down the tree and compare value at the nodes
         while(walker != null){
+            depth++;
+            if(path != null) path[depth - 1] = walker;
 
-            if(debugEnabled) System.out.printf("At new node (%d, %d, %d) searching for %d.\n", walker.value1, walker.value2, walker.value3, value);
+            int i = walker.indexFor(value);
 
+            //begin delete operation if we find location
+            if(i < walker.values && walker.value(i) == value){
+
+                //if at a leaf, just delete the value
+                if(walker.isLeaf()){
+                    walker.removeValue(i);
+                    if(walker.values == 0){
+                        //only the root leaf can run empty
+                        release(walker);
+                        root = null;
+                        leftmost = null;
+                        rightmost = null;
+                    }
 
-            //for base case, we delete 1 value and exit
-            if(walker.isTwoNode() && walker.isRoot() && walker.isLeaf){
-                if(value == walker.value1){
-                    root = null;
-                    if(debugEnabled) System.out.println("Tree only had one value, removing root.");
-                    return true;
+                    if(orderStatistics) adjustCounts(depth, -1);
+                    if(listener != null) listener.onRemove(value, walker.values);
+                    size--;
+                    if(filter != null && filter.remove()) rebuildFilter();
+                    if(cache != null) cache.update(value, false);
+                    return descended(DELETE, value, depth, true);
                 }
-            }
-            //for a 2-node at root with kids, we continue
-            else if(walker.isTwoNode() && walker.isRoot()){
-                locationFound = (value == walker.value1);
-            }
-            //for all other 2-nodes we perform shifting operations and continue search at new node
-            else if(walker.isTwoNode()){
-
-                if(debugEnabled) System.out.println("Reached a 2-node. Starting operation.");
 
-                //try to rotate first
-                walker = rotate(leftSibling, walker, rightSibling);
+                TwoFourTreeItem valueChildL = walker.child(i);
+                TwoFourTreeItem valueChildR = walker.child(i + 1);
 
-                //if rotate wasnt the right choice, walker still needs updating
-                if(walker.isTwoNode()){
-                    walker = merge(leftSibling, walker, rightSibling);
+                //both of the value's children are 2-nodes, so pull the value down between them and continue there
+                if(valueChildL.isTwoNode() && valueChildR.isTwoNode()){
+                    walker = mergeChildren(walker, i);
+                    continue;
                 }
 
-                //if walker is still a two node, we failed to rotate or merge
-                if(walker.isTwoNode()){
-                    if(debugEnabled) System.out.println("Failed to fix 2-node. Tree may have an error.");
-                }
-
-            }
-
-            //walker must be a 3-node or 4-node by now so check location
-            if(walker.isThreeNode()){
-                locationFound = (value == walker.value1 || value == walker.value2);
-            }
-            else if(walker.isFourNode()){
-                locationFound = (value == walker.value1 || value == walker.value2 || value == walker.value3);
-            }
+                //otherwise replace it with its predecessor or successor from a child that can spare one
+                boolean usingSubtreeL = !valueChildL.isTwoNode();
+                TwoFourTreeItem seeker = usingSubtreeL ? valueChildL : valueChildR;
 
-            //begin delete operation if we find location
-            if(locationFound){
-                if(debugEnabled) System.out.printf("Found value %d at node (%d %d %d) Starting delete operation.\n", value, walker.value1, walker.value2, walker.value3);
-
-                //these will be the kids we use to find the replacement value for delete
-                TwoFourTreeItem valueChildL = null;
-                TwoFourTreeItem valueChildR = null;
-                //these are the important children's siblings
-                TwoFourTreeItem extraChildL = null;
-                TwoFourTreeItem extraChildR = null;
-
-                //first, find the value's kids
-                valueChildL = findValueChildL(value, walker);
-                valueChildR = findValueChildR(value, walker);
-                extraChildL = findVCLSiblingL(value, walker);
-                extraChildR = findVCRSiblingR(value, walker);
-
-                //for debugging
-                if(!walker.isLeaf){
-                    if(debugEnabled) System.out.printf("Left value child: (%d %d %d)\n", valueChildL.value1, valueChildL.value2, valueChildL.value3);
-                    if(debugEnabled) System.out.printf("Right value child: (%d %d %d)\n", valueChildR.value1, valueChildR.value2, valueChildR.value3);
-                }
-                
-                //Try to do a simple delete at a leaf, or merge with 2-node children if they exist
-                while(walker.isLeaf || (valueChildL.isTwoNode() && valueChildR.isTwoNode())){
-                    
-                    //if at a leaf, just delete the value
-                    if(walker.isLeaf){
-
-                        if(debugEnabled) System.out.println("Value is safe to delete at current node. Deleting Value.");
-
-                        //delete for 4-nodes
-                        if(walker.isFourNode()){
-                            if(value == walker.value1){
-                                walker.value1 = walker.value2;
-                                walker.value2 = walker.value3;
-                            }
-                            if(value == walker.value2){
-                                walker.value2 = walker.value3;
-                            }
-                            //for all locations we reset value3 last
-                            walker.value3 = 0;
-                        }
-                        //this is for 3 nodes
-                        else{
-                            if(value == walker.value1){
-                                walker.value1 = walker.value2;
-                            }
-                            //for all locations we reset value 2 last
-                            walker.value2 = 0;
-                        }
-
-                        walker.values--;
-                        if(debugEnabled) System.out.printf("Post-delete node: (%d, %d, %d).\n", walker.value1, walker.value2, walker.value3);
-                        return true;
-                    }
-                    else{  //by now,  we know both subtree's are 2-node so we must steal or merge
-
-                        //let the left value child steal from its extra sibling if possible
-                        if(extraChildL != null && !extraChildL.isTwoNode()){
-                            rotate(extraChildL, valueChildL, null);
-                        }
-                        //let the right value child steal from its extra sibling if possible
-                        else if(extraChildR != null && !extraChildR.isTwoNode()){
-                            rotate(null, valueChildR, extraChildR);
-                        }
-                        //otherwise we pull the walker down into its kids and update it
-                        else{
-                            //Send in values to merge. Assume we merge into the right sibling for simplicity.
-                            walker = merge(valueChildL, valueChildR, null);
-                            if(debugEnabled) System.out.printf("Succesfully merged delete value down to node: (%d, %d, %d).\n", walker.value1, walker.value2, walker.value3);    
-                        }
-
-                        //re-locate the nearest children for the updated walker
-                        valueChildL = findValueChildL(value, walker);
-                        valueChildR = findValueChildR(value, walker);
-                    }
+                //navigate down and fix two nodes before we reach them
+                while(true){
+                    depth++;
+                    if(path != null) path[depth - 1] = seeker;
+                    if(seeker.isLeaf()) break;
+                    seeker = fixChild(seeker, usingSubtreeL ? seeker.values : 0);
                 }
 
-                if(debugEnabled) System.out.printf("Right-leftmost or Left-rightmost value available!\n Using subtree to retrieve replacement value.\n");
+                //finally, we can extract the largest/smallest value and put it in the value's place
+                int targetValue = seeker.removeValue(usingSubtreeL ? seeker.values - 1 : 0);
+                walker.setValue(i, targetValue);
 
-                //start seeking a value closest to the value
-                TwoFourTreeItem seeker;
+                if(orderStatistics) adjustCounts(depth, -1);
+                if(listener != null) listener.onRemove(targetValue, seeker.values);
+                size--;
+                if(filter != null && filter.remove()) rebuildFilter();
+                if(cache != null) cache.update(value, false);
 
-                //these will help determine the rightmost or leftmost sub value
-                boolean usingSubtreeR = false;
-                boolean usingSubtreeL = false;
-                int targetValue;
+                return descended(DELETE, value, depth, true);
+            }
 
-                if(!valueChildL.isTwoNode()){
-                    usingSubtreeL = true;
-                    seeker = valueChildL;
+            if(walker.isLeaf()) break;
 
-                    if(debugEnabled) System.out.println("Choosing left subtree.");
-                }
-                else{
-                    usingSubtreeR = true;
-                    seeker = valueChildR;
+            //make sure the child we step into isn't a 2-node
+            walker = fixChild(walker, i);
+        }
 
-                    if(debugEnabled) System.out.println("Choosing right subtree.");
-                }
-                
-                if(debugEnabled) System.out.printf("Subtree Selected: (%d, %d, %d)\n", seeker.value1, seeker.value2, seeker.value3);
+        //if we reach this point, we never found the item
+        return descended(DELETE, value, depth, false);
+    }
 
-                //navigate down and fix two nodes before we reach them
-                while(!seeker.isLeaf){
-
-                    if(debugEnabled) System.out.println("Seeker is not a leaf. Attempting to navigate down.");
-                    
-      
-                    //we go different directions depending on which subtree we use
-                    if(usingSubtreeL && seeker.isFourNode()){
-                        targetValue = seeker.value3;
-                    }
-                    else if(usingSubtreeL && seeker.isThreeNode()){
-                        targetValue = seeker.value2;
-                    }
-                    else{
-                        targetValue = seeker.value1;
-                    }
+/* Returns the smallest value in the tree. It throws NoSuchElementException if the tree is empty. */
+    public int first() {
+        if(pool != null) return pool.first();
+        if(root == null) throw new NoSuchElementException("The tree is empty");
+        return leftmost.value1;
+    }
 
-                    if(debugEnabled) System.out.printf("Chose target value (%d).\n", targetValue);
-                    
-                    //prepare for a 2-node target value node
-                    valueChildL = findValueChildL(targetValue, seeker);
-                    valueChildR = findValueChildR(targetValue, seeker);
+/* Returns the largest value in the tree. It throws NoSuchElementException if the tree is empty. */
+    public int last() {
+        if(pool != null) return pool.last();
+        if(root == null) throw new NoSuchElementException("The tree is empty");
+        return rightmost.value(rightmost.values - 1);
+    }
 
-                    //merge with target value if the node is a 2-node.
-                    if(valueChildL.isTwoNode() && valueChildR.isTwoNode()){
-                        seeker = merge(valueChildL, valueChildR, null);
-                    }
-                    else if(usingSubtreeL && valueChildR.isTwoNode() && !valueChildL.isTwoNode()){
-                        seeker = rotate(valueChildL, valueChildR, null);
-                    }
-                    else if(usingSubtreeR && valueChildL.isTwoNode() && !valueChildR.isTwoNode()){
-                        seeker = rotate(null, valueChildL, valueChildR);
-                    }
-                    
-                    //at this point, we can confirm our value child is not a 2-node, its safe to move to
-                    else if(usingSubtreeL){
-                        seeker = valueChildR;
-                    }
-                    else{
-                        seeker = valueChildL;
-                    }
+/*
+ * Removes the smallest value from the tree and returns it. It throws NoSuchElementException if
+ * the tree is empty. The value comes from the cached leftmost leaf, and deleteValue takes it
+ * out in one descent down the left edge, rotating and merging on the way like any delete.
+ */
+    public int pollFirst() {
+        int value = first();
+        deleteValue(value);
+        return value;
+    }
 
-                }
+/* Removes the largest value from the tree and returns it, like pollFirst does at the other end. */
+    public int pollLast() {
+        int value = last();
+        deleteValue(value);
+        return value;
+    }
 
-                //now we've reached a bigger leaf containing the target value
-                if(debugEnabled) System.out.printf("Finished seeking target value at node (%d, %d, %d).\n", seeker.value1, seeker.value2, seeker.value3);
+/* Returns the largest value at or below the given one. It throws NoSuchElementException if there is none. */
+    public int floor(int value) {
+        if(pool != null) return pool.floor(value);
+        return below(value, true);
+    }
 
-                //finally, we can extract the largest/smallest value
-                if(usingSubtreeL && seeker.isFourNode()){
-                    targetValue = seeker.value3;
-                    seeker.value3 = 0;
-                }
-                else if(usingSubtreeL && seeker.isThreeNode()){
-                    targetValue = seeker.value2;
-                    seeker.value2 = 0;
-                }
-                else{
-                    targetValue = seeker.value1;
-                    seeker.value1 = seeker.value2;
-                    seeker.value2 = seeker.value3;
-                    seeker.value3 = 0;
-                }
+/* Returns the largest value strictly below the given one. It throws NoSuchElementException if there is none. */
+    public int lower(int value) {
+        if(pool != null) return pool.lower(value);
+        return below(value, false);
+    }
 
-                if(debugEnabled) System.out.printf("Retrieving value (%d).\n", targetValue);
-                seeker.values--;
+/* Returns the smallest value at or above the given one. It throws NoSuchElementException if there is none. */
+    public int ceiling(int value) {
+        if(pool != null) return pool.ceiling(value);
+        return above(value, true);
+    }
 
-                //then replace the original value held by the walker
+/* Returns the smallest value strictly above the given one. It throws NoSuchElementException if there is none. */
+    public int higher(int value) {
+        if(pool != null) return pool.higher(value);
+        return above(value, false);
+    }
 
-                //for 4-nodes
-                if(walker.isFourNode()){
-                    if(value == walker.value1){
-                        walker.value1 = targetValue;
-                    }
-                    else if(value == walker.value2){
-                        walker.value2 = targetValue;
-                    }
-                    else{
-                        walker.value3 = targetValue;
-                    }
-                }
-                //this is for 3 nodes
-                else{
-                    if(value == walker.value1){
-                        walker.value1 = targetValue;
-                    }
-                    else{
-                        walker.value2 = targetValue;
-                    }
-                }
+/*
+ * Finds the largest value below the given one, or at it if inclusive, in one descent. Every node
+ * on the way has its last value below the given one as a candidate, and the ones further down
+ * are closer. Anything past the largest value is answered from the rightmost leaf.
+ */
+    private int below(int value, boolean inclusive) {
+        if(root != null){
+            int largest = rightmost.value(rightmost.values - 1);
+            if(largest < value || (inclusive && largest == value)) return largest;
+        }
 
-                if(debugEnabled) System.out.printf("Successfully swapped and deleted values at node (%d, %d, %d).\n", walker.value1, walker.value2, walker.value3);
-                return true;
-            }
+        TwoFourTreeItem walker = root;
+        boolean found = false;
+        int best = 0;
+        while(walker != null){
+            //i values here are below the given one, and child i holds the ones between the last of them and the rest
+            int i = walker.indexFor(value);
+            if(inclusive && i < walker.values && walker.value(i) == value) return value;
+            if(i > 0){
+                best = walker.value(i - 1);
+                found = true;
+            }
+            walker = walker.child(i);
+        }
 
+        if(!found) throw new NoSuchElementException("No value " + (inclusive ? "at or below " : "below ") + value);
+        return best;
+    }
 
-            //pick up here if the delete value isn't at the current node
-            if(debugEnabled) System.out.printf("Value was not at node (%d, %d, %d). Descending futher.\n", walker.value1, walker.value2, walker.value3);
+/* Same as below, for the smallest value above the given one, or at it if inclusive. */
+    private int above(int value, boolean inclusive) {
+        if(root != null){
+            int smallest = leftmost.value1;
+            if(smallest > value || (inclusive && smallest == value)) return smallest;
+        }
 
-            //descend and track siblings for rotations if needed
-            if(walker.isFourNode()){
-                if(value < walker.value1){
-                    rightSibling = walker.centerLeftChild;
-                    leftSibling = null;
-                    walker = walker.leftChild;
-                }
-                else if(value < walker.value2){
-                    rightSibling = walker.centerRightChild;
-                    leftSibling = walker.leftChild;
-                    walker = walker.centerLeftChild;
-                }
-                else if (value < walker.value3){
-                    rightSibling = walker.rightChild;
-                    leftSibling = walker.centerLeftChild;
-                    walker = walker.centerRightChild;
-                }
-                else{
-                    rightSibling = null;
-                    leftSibling = walker.centerRightChild;
-                    walker = walker.rightChild;
-                }
-            }
-            else if(walker.isThreeNode()){
-                if(value < walker.value1){
-                    rightSibling = walker.centerChild;
-                    leftSibling = null;
-                    walker = walker.leftChild;
-                }
-                else if(value < walker.value2){
-                    rightSibling = walker.rightChild;
-                    leftSibling = walker.leftChild;
-                    walker = walker.centerChild;
-                }
-                else{
-                    rightSibling = null;
-                    leftSibling = walker.centerChild;
-                    walker = walker.rightChild;
-                }
+        TwoFourTreeItem walker = root;
+        boolean found = false;
+        int best = 0;
+        while(walker != null){
+            int i = walker.indexFor(value);
+            if(i < walker.values && walker.value(i) == value){
+                if(inclusive) return value;
+                //everything above the value itself starts in the child to its right
+                i++;
             }
-            else{   //this is only for the root since other 2-nodes are fixed
-                if(value < walker.value1){
-                    rightSibling = walker.rightChild;
-                    leftSibling = null;
-                    walker = walker.leftChild;
-                }
-                else{
-                    rightSibling = null;
-                    leftSibling = walker.leftChild;
-                    walker = walker.rightChild;
-                }
+            if(i < walker.values){
+                best = walker.value(i);
+                found = true;
             }
+            walker = walker.child(i);
         }
 
-        //if we reach this point, we never found the item
-        if(debugEnabled) System.out.println("Failed to locate and delete value!");
-        return false;
+        if(!found) throw new NoSuchElementException("No value " + (inclusive ? "at or above " : "above ") + value);
+        return best;
     }
 
 /*
@@ -595,650 +680,1065 @@ public class TwoFourTree {
  * It will do nothing if root is null.
  */
     public void printInOrder() {
-        if(root != null) root.printInOrder(0);
+        if(pool != null) pool.printInOrder();
+        else if(root != null) root.printInOrder(0);
     }
 
 
 /*
- * This method splits a 4-node into a parent with two 2-node children.
- * It takes the large node and the value you wish to move toward after the operation.
- * It either makes a new parent or pushes the middle value of the node into an existing parent,
- * then it returns the child closest to the provided value. This won't work for non 4-nodes.
+ * This method calls action with every value between lo and hi, both included, in ascending order.
+ * It walks the tree with a Cursor, so it doesn't recurse or allocate per value.
  */
-    public TwoFourTreeItem splitFourNode(TwoFourTreeItem walker, int value){
-        
-        TwoFourTreeItem parent = walker.parent;
-
-        //these are the closest children to our original value in our resulting merge node
-        TwoFourTreeItem leftishChild = null;
-        TwoFourTreeItem rightishChild = null;
-
-        int centerValue = walker.value2;
-
-
-        //for the root, we must create a parent as we split
-        if(walker.isRoot()){
-            
+    public void forEachInRange(int lo, int hi, IntConsumer action) {
+        if(lo > hi) return;
+
+        Cursor cursor = cursor();
+        cursor.seek(lo);
+        while(cursor.hasNext()){
+            int value = cursor.next();
+            if(value > hi) return;
+            action.accept(value);
+        }
+    }
 
-            if(debugEnabled) System.out.println("At root, making 3 new nodes.");
-            //push the middle value up
-            parent = new TwoFourTreeItem(centerValue);
-            
-            //split the old values to attach later on
-            rightishChild = parent.rightChild = new TwoFourTreeItem(walker.value3);
-            leftishChild = parent.leftChild = new TwoFourTreeItem(walker.value1);
+/* This method returns how many values lie between lo and hi, both included. */
+    public int countInRange(int lo, int hi) {
+        if(lo > hi) return 0;
 
-            //let the parent know it has kids
-            parent.isLeaf = false;
+        //with subtree counts we don't need to visit the values at all
+        if(orderStatistics){
+            int below = (hi == Integer.MAX_VALUE) ? size : rank(hi + 1);
+            return below - rank(lo);
+        }
 
-            //update the root with the new parent
-            root = parent;
+        int count = 0;
+        Cursor cursor = cursor();
+        cursor.seek(lo);
+        while(cursor.hasNext() && cursor.next() <= hi){
+            count++;
         }
+        return count;
+    }
 
-        //otherwise the parent could be a three node
-        //we should insert correctly and track the children
-        else if(parent.isThreeNode()){
+/* Returns a new cursor over this tree. It starts out empty until seek is called. */
+    public Cursor cursor() {
+        requireNodes("cursor");
+        return new Cursor();
+    }
 
-            if(debugEnabled) System.out.println("Splitting into two nodes, giving middle value to 3-node parent.");
+/*
+ * A reusable ascending cursor over the tree. seek positions it at the smallest value that is
+ * not below a key, then next hands out values in order until hasNext turns false. It keeps
+ * the path from the root in a fixed explicit stack, so neither seek nor next allocates and a
+ * single cursor can serve any number of scans. Changing the tree invalidates the position, so
+ * seek again after any addValue or deleteValue.
+ */
+    public class Cursor {
+        //a 2-3-4 tree of ints is never more than 32 levels deep
+        private final TwoFourTreeItem[] nodes = new TwoFourTreeItem[64];
+        //the index of the next value to hand out in each node on the stack
+        private final int[] positions = new int[64];
+        private int depth = 0;
+
+        private Cursor() {
+        }
 
-            if(centerValue < parent.value1){
-                //push the center value on the left of the parent's data
-                parent.value3 = parent.value2;
-                parent.value2 = parent.value1;
-                parent.value1 = centerValue;
-                parent.values = 3;
+        public void seek(int key) {
+            depth = 0;
+            TwoFourTreeItem walker = root;
 
-                //move the parents middle child to the right to make space for new kids
-                parent.centerRightChild = parent.centerChild;
-                parent.centerChild = null;
+            while(walker != null){
+                //find the first value in the node that isn't below the key
+                int i = 0;
+                while(i < walker.values && walker.value(i) < key) i++;
 
-                //create a node for the original right-side value
-                rightishChild = parent.centerLeftChild = new TwoFourTreeItem(walker.value3);
+                //nodes only go on the stack while they still have values to hand out
+                if(i < walker.values){
+                    nodes[depth] = walker;
+                    positions[depth] = i;
+                    depth++;
 
-                //create a node for the original left-side value
-                leftishChild = parent.leftChild = new TwoFourTreeItem(walker.value1);
+                    //everything in the child to the left of an exact match is smaller
+                    if(walker.value(i) == key) return;
+                }
 
+                walker = walker.isLeaf() ? null : walker.child(i);
             }
-            else if(centerValue < parent.value2){
-                //update the values with new value in middle
-                parent.value3 = parent.value2;
-                parent.value2 = centerValue;
-                parent.values = 3;
+        }
 
-                //create a node for the original right-side value
-                rightishChild = parent.centerRightChild = new TwoFourTreeItem(walker.value3);
+        public boolean hasNext() {
+            return depth > 0;
+        }
 
-                //create a node for the original left-side value
-                leftishChild = parent.centerLeftChild = new TwoFourTreeItem(walker.value1);
+        public int next() {
+            if(depth == 0) throw new NoSuchElementException();
+
+            TwoFourTreeItem node = nodes[depth - 1];
+            int i = positions[depth - 1];
+            int value = node.value(i);
+
+            //move past the value, dropping the node once it has none left
+            if(i + 1 < node.values) positions[depth - 1] = i + 1;
+            else depth--;
+
+            //the values right after it are the leftmost path of the next child
+            if(!node.isLeaf()){
+                TwoFourTreeItem walker = node.child(i + 1);
+                while(walker != null){
+                    nodes[depth] = walker;
+                    positions[depth] = 0;
+                    depth++;
+                    walker = walker.child0;
+                }
             }
-            else{
-                //update the values with new value at highest
-                parent.value3 = centerValue;
-                parent.values = 3;
 
-                //move the parents middle child to the left to make space for new kids
-                parent.centerLeftChild = parent.centerChild;
-                parent.centerChild = null;
+            return value;
+        }
+    }
 
-                //create a node for the original right-side value
-                rightishChild = parent.rightChild = new TwoFourTreeItem(walker.value3);
+/*
+ * This method adds every value in the batch that isn't in the tree yet, and returns how many
+ * were added. The batch is copied, sorted and stripped of duplicates first. Small batches are
+ * then inserted one after another in key order, so consecutive inserts walk the same warm
+ * path. A batch that is large next to the tree is instead merged with the tree's in-order
+ * values and the tree is rebuilt bottom-up, which is linear in the combined size.
+ */
+    public int addAll(int[] batch) {
+        int[] sorted = sortedUnique(batch);
+        int count = sorted.length;
+        int added = 0;
 
-                //create a node for the original left-side value
-                leftishChild = parent.centerRightChild = new TwoFourTreeItem(walker.value1);
+        if(pool != null || count * REBUILD_RATIO < size){
+            for(int i = 0; i < count; i++){
+                if(addValue(sorted[i])) added++;
             }
+            return added;
         }
 
-        //otherwise the parent is a two node
-        else{
+        //merge the two sorted runs, keeping one copy of values found in both
+        int[] existing = toSortedArray();
+        int[] merged = new int[existing.length + count];
+        int e = 0;
+        int b = 0;
+        int m = 0;
+        while(e < existing.length || b < count){
+            if(b == count || (e < existing.length && existing[e] < sorted[b])){
+                merged[m++] = existing[e++];
+            }
+            else{
+                if(e < existing.length && existing[e] == sorted[b]) e++;
+                else added++;
+                merged[m++] = sorted[b++];
+            }
+        }
 
-            if(debugEnabled) System.out.println("Splitting into two nodes, giving middle value to 2-node parent.");
+        bulkLoad(merged, 0, m, 2);
+        return added;
+    }
 
-            if(centerValue < parent.value1){
-                //push the center value on the left of the parent's data
-                parent.value2 = parent.value1;
-                parent.value1 = centerValue;
-                parent.values = 2;
+/*
+ * This method removes every value in the batch that is in the tree, and returns how many were
+ * removed. It picks between deleting one value at a time and rebuilding the tree without the
+ * batch in the same way addAll does.
+ */
+    public int deleteAll(int[] batch) {
+        int[] sorted = sortedUnique(batch);
+        int count = sorted.length;
+        int removed = 0;
 
-                //create a node for the original right-side value
-                rightishChild = parent.centerChild = new TwoFourTreeItem(walker.value3);
+        if(pool != null || count * REBUILD_RATIO < size){
+            for(int i = 0; i < count; i++){
+                if(deleteValue(sorted[i])) removed++;
+            }
+            return removed;
+        }
 
-                //create a node for the original left-side value
-                leftishChild = parent.leftChild = new TwoFourTreeItem(walker.value1);
+        //keep the tree's values that don't appear in the batch
+        int[] existing = toSortedArray();
+        int b = 0;
+        int m = 0;
+        for(int e = 0; e < existing.length; e++){
+            while(b < count && sorted[b] < existing[e]) b++;
+            if(b < count && sorted[b] == existing[e]){
+                removed++;
             }
             else{
-                //update the values with new value at highest
-                parent.value2 = centerValue;
-                parent.values = 2;
+                existing[m++] = existing[e];
+            }
+        }
 
-                //create a node for the original right-side value
-                rightishChild = parent.rightChild = new TwoFourTreeItem(walker.value3);
+        if(removed > 0) bulkLoad(existing, 0, m, 2);
+        return removed;
+    }
+
+/* Returns a sorted copy of the values with duplicates removed, trimmed to fit. */
+    private static int[] sortedUnique(int[] values) {
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
 
-                //create a node for the original left-side value
-                leftishChild = parent.centerChild = new TwoFourTreeItem(walker.value1);
+        int unique = 0;
+        for(int i = 0; i < sorted.length; i++){
+            if(unique == 0 || sorted[unique - 1] != sorted[i]){
+                sorted[unique++] = sorted[i];
             }
         }
 
-        if(debugEnabled) System.out.println("Split nearly complete. Updating parents and children.");
+        return (unique == sorted.length) ? sorted : Arrays.copyOf(sorted, unique);
+    }
 
-        //assign the children to the split nodes from the 3 node
-        rightishChild.rightChild = walker.rightChild;
-        rightishChild.leftChild = walker.centerRightChild;
-        leftishChild.rightChild = walker.centerLeftChild;
-        leftishChild.leftChild = walker.leftChild;
+/*
+ * Returns a read-only copy of the tree as a FrozenTwoFourTree, which keeps the keys in one int[]
+ * with no node objects, for data that is built once and then only queried. The keys are streamed
+ * in with a cursor, and this tree is left as it is. It needs Storage.NODES.
+ */
+    public FrozenTwoFourTree freeze() {
+        Cursor cursor = cursor();
+        cursor.seek(Integer.MIN_VALUE);
+        return new FrozenTwoFourTree(size, cursor::next);
+    }
 
-        //assign parents to new kids
-        rightishChild.parent = parent;
-        leftishChild.parent = parent;
-        
-        //if original 4-node had kids, we should assign their parents too
-        if(!walker.isLeaf){
-            rightishChild.rightChild.parent = rightishChild;
-            rightishChild.leftChild.parent = rightishChild;
-            leftishChild.rightChild.parent = leftishChild;
-            leftishChild.leftChild.parent = leftishChild;
-            
-            //also need to tell the new nodes that they are parents
-            rightishChild.isLeaf = false;
-            leftishChild.isLeaf = false;
+/* Returns every value in the tree in ascending order. */
+    private int[] toSortedArray() {
+        int[] values = new int[size];
+        int i = 0;
+        Cursor cursor = cursor();
+        cursor.seek(Integer.MIN_VALUE);
+        while(cursor.hasNext()){
+            values[i++] = cursor.next();
         }
-    
-        //last we decide where to place the walker to continue navigation
-        if(value < centerValue){
-            walker = leftishChild;
+        return values;
+    }
+
+/* This method returns the number of values in the tree. */
+    public int size() {
+        if(pool != null) return pool.size();
+        return size;
+    }
+
+/*
+ * This method attaches a listener that is told about every descent, split, rotation and merge
+ * from now on. It first gets an onRebuild with the current node mix, so it can start from the
+ * tree as it is. It needs Storage.NODES.
+ */
+    public void addListener(TreeEventListener added) {
+        requireNodes("addListener");
+        takeCensus(added);
+        listeners = Arrays.copyOf(listeners, listeners.length + 1);
+        listeners[listeners.length - 1] = added;
+        updateListener();
+    }
+
+/* This method detaches a listener. It does nothing if the listener wasn't attached. */
+    public void removeListener(TreeEventListener removed) {
+        for(int i = 0; i < listeners.length; i++){
+            if(listeners[i] == removed){
+                TreeEventListener[] kept = new TreeEventListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, kept, 0, i);
+                System.arraycopy(listeners, i + 1, kept, i, kept.length - i);
+                listeners = kept;
+                updateListener();
+                return;
+            }
+        }
+    }
+
+/*
+ * This method switches metrics on and returns them. From then on the tree counts its splits,
+ * rotations, merges and descents, and keeps a census of its 2-, 3- and 4-nodes, which another
+ * thread may read at any time. Calling it again returns the same metrics. It needs Storage.NODES.
+ */
+    public TwoFourTreeMetrics enableMetrics() {
+        if(metrics == null){
+            TwoFourTreeMetrics added = new TwoFourTreeMetrics();
+            addListener(added);
+            metrics = added;
+        }
+        return metrics;
+    }
+
+/* This method switches metrics off again. */
+    public void disableMetrics() {
+        if(metrics != null){
+            removeListener(metrics);
+            metrics = null;
         }
-        else{
-            walker = rightishChild;
+    }
+
+/* This method returns the metrics, or null while they are switched off. */
+    public TwoFourTreeMetrics metrics() {
+        return metrics;
+    }
+
+/*
+ * This method switches the filter on and returns it. From then on hasValue asks a blocked Bloom
+ * filter of the tree's values first, and most values that aren't in the tree are turned away
+ * after one cache line instead of a walk to a leaf. Adds set the value's bits, and the filter is
+ * rebuilt from the tree once deletes have left too many stale ones. Calling it again returns the
+ * same filter. It needs Storage.NODES.
+ */
+    public TwoFourTreeFilter enableFilter() {
+        requireNodes("enableFilter");
+        if(filter == null){
+            Cursor cursor = cursor();
+            cursor.seek(Integer.MIN_VALUE);
+            filter = new TwoFourTreeFilter(size, cursor::next);
         }
+        return filter;
+    }
 
-        if(debugEnabled) System.out.println("Finished split operation, continuing add process.");
-        return walker;
+/* This method switches the filter off again. */
+    public void disableFilter() {
+        filter = null;
+    }
 
+/* This method returns the filter, or null while it is switched off. */
+    public TwoFourTreeFilter filter() {
+        return filter;
     }
 
+    private void filterAdded(int value) {
+        if(filter.add(value)) rebuildFilter();
+    }
 
 /*
- * This method uses a node/walker, sibling, and parent create a new walker with a value stolen from
- * the parent. It also shifts a sibling's value up to the parent to maintain balance.
- * It needs the walker and a 3 or 4 node sibling to have any effect.
- * It returns the walker with one extra value from its parent and the child
- * of the sibling it used. This will break the tree if walker is not a 2-node, or if walker is parentless.
+ * This method switches the cache on with room for at least capacity values and returns it. From
+ * then on hasValue remembers its answers, found or not, and repeated lookups of the same values
+ * are answered from one cache line without walking the tree. Adds and deletes keep the cached
+ * answers right. Calling it again returns the same cache.
  */
-    public TwoFourTreeItem rotate(TwoFourTreeItem leftSibling, TwoFourTreeItem walker, TwoFourTreeItem rightSibling){
+    public TwoFourTreeCache enableCache(int capacity) {
+        if(cache == null) cache = new TwoFourTreeCache(capacity);
+        return cache;
+    }
 
-        TwoFourTreeItem parent = walker.parent;
+/* Same as above, with room for DEFAULT_CACHE_CAPACITY values. */
+    public TwoFourTreeCache enableCache() {
+        return enableCache(DEFAULT_CACHE_CAPACITY);
+    }
 
-        //use left sibling if it's available
-        if(leftSibling != null && !leftSibling.isTwoNode()){
+/* This method switches the cache off again. */
+    public void disableCache() {
+        cache = null;
+    }
 
-            if(debugEnabled) System.out.println("Taking value from left sibling.");
+/* This method returns the cache, or null while it is switched off. */
+    public TwoFourTreeCache cache() {
+        return cache;
+    }
 
-            int upValue;
-            //store the value to move upward to the parent
-            if(leftSibling.isFourNode()){
-                upValue = leftSibling.value3;
-            }
-            else{
-                upValue = leftSibling.value2;
-            }
+/* Finishes a hasValue that walked the tree, remembering the answer while the cache is on. */
+    private boolean cachedFind(int value, int depth, boolean result) {
+        if(cache != null) cache.put(value, result);
+        return descended(FIND, value, depth, result);
+    }
 
-            //make space for the parents value
-            walker.value2 = walker.value1;
+/* Sets the filter's bits again from every value in the tree, sized for the tree as it is now. */
+    private void rebuildFilter() {
+        Cursor cursor = cursor();
+        cursor.seek(Integer.MIN_VALUE);
+        filter.rebuild(size, cursor::next);
+    }
 
-            //perform the swap from sibling to parent to walker
-            if(parent.isFourNode()){
-                if(upValue < parent.value1){
-                    walker.value1 = parent.value1 ;
-                    parent.value1 = upValue;
-                }
-                else if(upValue < parent.value2){
-                    walker.value1 = parent.value2;
-                    parent.value2 = upValue;
-                }
-                else{
-                    walker.value1 = parent.value3;
-                    parent.value3 = upValue;
-                }
-            }
-            else if(parent.isThreeNode()){
-                if(upValue < parent.value1){
-                    walker.value1 = parent.value1 ;
-                    parent.value1 = upValue;
-                }
-                else{
-                    walker.value1 = parent.value2;
-                    parent.value2 = upValue;
-                }
-            }
-            else{  //we know parent is two node, must be the root
-                walker.value1 = parent.value1 ;
-                parent.value1 = upValue;
-            }
+/*
+ * This method returns how many values in the tree are smaller than value. The value itself
+ * doesn't have to be in the tree. It needs a tree built with order statistics.
+ */
+    public int rank(int value) {
+        requireOrderStatistics("rank");
 
-            //update walker info
-            walker.values = 2;
+        int rank = 0;
+        TwoFourTreeItem walker = root;
 
-            //adopt child
-            walker.centerChild = walker.leftChild;
-            walker.leftChild = leftSibling.rightChild;
-            //update child's parent
-            if(!walker.isLeaf){
-                walker.leftChild.parent = walker;
+        while(walker != null){
+            //count every value in the node below ours, along with the subtree to its left
+            int i = 0;
+            while(i < walker.values && walker.value(i) < value){
+                rank += 1 + (walker.isLeaf() ? 0 : countOf(walker.child(i)));
+                i++;
             }
 
-            if(leftSibling.isFourNode()){
-                //update left sibling
-                leftSibling.value3 = 0;
-                leftSibling.values = 2;
+            if(walker.isLeaf()) return rank;
 
-                //fix broken family
-                leftSibling.rightChild = leftSibling.centerRightChild;
-                leftSibling.centerChild = leftSibling.centerLeftChild;
-                leftSibling.centerLeftChild = null;
-                leftSibling.centerRightChild = null;
+            //an exact match only has its left subtree below it
+            if(i < walker.values && walker.value(i) == value){
+                return rank + countOf(walker.child(i));
             }
-            else{
-                //update left sibling
-                leftSibling.value2 = 0;
-                leftSibling.values = 1;
 
-                //fix broken family
-                leftSibling.rightChild = leftSibling.centerChild;
-                leftSibling.centerChild = null;
-            }
+            walker = walker.child(i);
+        }
+
+        return rank;
+    }
 
-            //walker is now a 3-node with the parents value pulled down
-            return walker;
+/*
+ * This method returns the value with the given rank, so select(0) is the smallest value and
+ * select(size() - 1) the largest. It needs a tree built with order statistics.
+ */
+    public int select(int rank) {
+        requireOrderStatistics("select");
+        if(rank < 0 || rank >= size){
+            throw new IndexOutOfBoundsException("Rank " + rank + " is outside a tree of size " + size);
         }
 
-        //otherwise try to rotate using the right sibling
-        else if(rightSibling != null && !rightSibling.isTwoNode()){
+        TwoFourTreeItem walker = root;
 
-            if(debugEnabled) System.out.println("Taking value from right sibling.");
+        while(!walker.isLeaf()){
+            //skip whole subtrees until the rank falls inside one, or lands on a value
+            int i = 0;
+            while(true){
+                int below = countOf(walker.child(i));
+                if(rank < below) break;
+                rank -= below;
+                if(rank == 0) return walker.value(i);
+                rank--;
+                i++;
+            }
+            walker = walker.child(i);
+        }
 
-            //store the value to move upward to the parent
-            int upValue = rightSibling.value1;
+        return walker.value(rank);
+    }
 
+/* Creates a node, giving it a subtree count when the tree keeps order statistics.
+ * A node from the free list is used before a new one is allocated. */
+    private TwoFourTreeItem newItem(int value1) {
+        if(freeCount > 0){
+            TwoFourTreeItem node = free[--freeCount];
+            free[freeCount] = null;
+            node.reset(value1);
+            if(orderStatistics) ((CountedItem) node).count = 1;
+            return node;
+        }
+        return orderStatistics ? new CountedItem(value1) : new TwoFourTreeItem(value1);
+    }
 
-            //perform the swap from sibling to parent to walker
-            if(parent.isFourNode()){
-                if(upValue > parent.value3){
-                    walker.value2 = parent.value3 ;
-                    parent.value3 = upValue;
-                }
-                else if(upValue > parent.value2){
-                    walker.value2 = parent.value2;
-                    parent.value2 = upValue;
-                }
-                else{
-                    walker.value2 = parent.value1;
-                    parent.value1 = upValue;
-                }
-            }
-            else if(parent.isThreeNode()){
-                if(upValue > parent.value2){
-                    walker.value2 = parent.value2 ;
-                    parent.value2 = upValue;
-                }
-                else{
-                    walker.value2 = parent.value1;
-                    parent.value1 = upValue;
-                }
-            }
-            else{  //we know parent is two node, must be the root
-                walker.value2 = parent.value1 ;
-                parent.value1 = upValue;
-            }
+/* Hands a node that is no longer in the tree to the free list, unless the list is full. */
+    private void release(TwoFourTreeItem node) {
+        if(freeCount < FREE_LIMIT) free[freeCount++] = node;
+    }
 
-            //update walker info
-            walker.values = 2;
+    private TwoFourTreeItem newItem(int value1, int value2) {
+        return orderStatistics ? new CountedItem(value1, value2) : new TwoFourTreeItem(value1, value2);
+    }
 
-            //adopt child
-            walker.centerChild = walker.rightChild;
-            walker.rightChild = rightSibling.leftChild;
-            //update child's parent
-            if(!walker.isLeaf){
-                walker.rightChild.parent = walker;
-            }
+    private TwoFourTreeItem newItem(int value1, int value2, int value3) {
+        return orderStatistics ? new CountedItem(value1, value2, value3) : new TwoFourTreeItem(value1, value2, value3);
+    }
 
-            if(rightSibling.isFourNode()){
-                //update right sibling
-                rightSibling.value1 = rightSibling.value2;
-                rightSibling.value2 = rightSibling.value3;
-                rightSibling.value3 = 0;
-                rightSibling.values = 2;
-
-                //fix broken family
-                rightSibling.leftChild = rightSibling.centerLeftChild;
-                rightSibling.centerChild = rightSibling.centerRightChild;
-                rightSibling.centerLeftChild = null;
-                rightSibling.centerRightChild = null;
-            }
-            else{
-                //update right sibling
-                rightSibling.value1 = rightSibling.value2;
-                rightSibling.value2 = 0;
-                rightSibling.values = 1;
-
-                //fix broken family
-                rightSibling.leftChild = rightSibling.centerChild;
-                rightSibling.centerChild = null;
-            }
+    private int countOf(TwoFourTreeItem node) {
+        return ((CountedItem) node).count;
+    }
+
+/* Recomputes a node's subtree count from its own values and its children's counts. */
+    private void recount(TwoFourTreeItem node) {
+        int count = node.values;
+        if(!node.isLeaf()){
+            for(int i = 0; i <= node.values; i++) count += countOf(node.child(i));
+        }
+        ((CountedItem) node).count = count;
+    }
+
+/* Adds delta to the subtree count of the first depth nodes on path, which run from the root down. */
+    private void adjustCounts(int depth, int delta) {
+        for(int i = 0; i < depth; i++){
+            ((CountedItem) path[i]).count += delta;
+        }
+    }
+
+    private void requireOrderStatistics(String operation) {
+        if(!orderStatistics){
+            throw new UnsupportedOperationException(operation + " needs a tree built with order statistics");
+        }
+    }
+
+/* Points the hooks at nothing, the only listener, or a Broadcast to all of them. */
+    private void updateListener() {
+        if(listeners.length == 0) listener = null;
+        else if(listeners.length == 1) listener = listeners[0];
+        else listener = new Broadcast(listeners);
+    }
+
+/* Hands every event on to several listeners, in the order they were added. */
+    private static class Broadcast implements TreeEventListener {
+        private final TreeEventListener[] targets;
+
+        Broadcast(TreeEventListener[] targets) {
+            this.targets = targets;
+        }
+
+        public void onDescend(Operation operation, int value, boolean result, int depth) {
+            for(TreeEventListener target : targets) target.onDescend(operation, value, result, depth);
+        }
 
-            //walker is now a 3-node with the parents value pulled down
-            return walker;
+        public void onSplit(int middleValue, int parentValues) {
+            for(TreeEventListener target : targets) target.onSplit(middleValue, parentValues);
         }
 
-        //return the original 2-node walker if we weren't meant to rotate
-        if(debugEnabled) System.out.println("Attempted rotation but siblings arent suitable.");
-        return walker;
-            
+        public void onRotate(int upValue, int downValue, int siblingValues) {
+            for(TreeEventListener target : targets) target.onRotate(upValue, downValue, siblingValues);
+        }
+
+        public void onMerge(int downValue, int parentValues) {
+            for(TreeEventListener target : targets) target.onMerge(downValue, parentValues);
+        }
+
+        public void onInsert(int value, int leafValues) {
+            for(TreeEventListener target : targets) target.onInsert(value, leafValues);
+        }
+
+        public void onRemove(int value, int leafValues) {
+            for(TreeEventListener target : targets) target.onRemove(value, leafValues);
+        }
+
+        public void onRebuild(long twoNodes, long threeNodes, long fourNodes, int height) {
+            for(TreeEventListener target : targets) target.onRebuild(twoNodes, threeNodes, fourNodes, height);
+        }
+    }
+
+/* Reports a finished descent to the listeners, and hands back result so it can be returned directly. */
+    private boolean descended(TreeEventListener.Operation operation, int value, int depth, boolean result) {
+        if(listener != null) listener.onDescend(operation, value, result, depth);
+        return result;
+    }
+
+/* Counts every node from scratch and hands the census to target, for a new listener or after a rebuild. */
+    private void takeCensus(TreeEventListener target) {
+        long[] census = new long[3];
+        int height = 0;
+        for(TwoFourTreeItem node = root; node != null; node = node.child0){
+            height++;
+        }
+        if(root != null) countNodes(root, census);
+        target.onRebuild(census[0], census[1], census[2], height);
     }
 
+    private static void countNodes(TwoFourTreeItem node, long[] census) {
+        census[node.values - 1]++;
+        if(node.isLeaf()) return;
+        for(int i = 0; i <= node.values; i++){
+            countNodes(node.child(i), census);
+        }
+    }
+
+/* The features built on TwoFourTreeItem can't run on a Storage.POOL tree. */
+    private void requireNodes(String operation) {
+        if(pool != null){
+            throw new UnsupportedOperationException(operation + " needs a tree built with Storage.NODES");
+        }
+    }
+
+
 /*
- * This will steal one parent and one 2-node sibling and form a new node with the walker.
- * This takes a 2-node walker and a 2-node sibling. It returns the combined sibling+parent+walker
- * to keep the tree balanced for deletions. It will break if the walker is parentless
- * or if the sibling provided is not a 2 node.
+ * This method splits the full child at index i of parent into two 2-nodes and pushes the
+ * child's middle value up into the parent, which must not be full. The 4-node itself stays
+ * behind as the left half, so only the right half is a new node.
  */
-    public TwoFourTreeItem merge(TwoFourTreeItem leftSibling, TwoFourTreeItem walker, TwoFourTreeItem rightSibling){
-        
-        TwoFourTreeItem parent = walker.parent;
+    private void splitChild(TwoFourTreeItem parent, int i) {
+        TwoFourTreeItem full = parent.child(i);
+        int centerValue = full.value2;
+
+        //the right half takes the largest value and the two rightmost children
+        TwoFourTreeItem sibling = newItem(full.value3);
+        if(full == rightmost) rightmost = sibling;
+        if(!full.isLeaf()){
+            sibling.child0 = full.child2;
+            sibling.child1 = full.child3;
+            full.child2 = null;
+            full.child3 = null;
+        }
 
-        //pull down parent and merge with left sibling
-        if(leftSibling != null){
+        //cut the 4-node down to a 2-node
+        full.value2 = EMPTY;
+        full.value3 = EMPTY;
+        full.values = 1;
 
-            if(debugEnabled) System.out.println("Merging with left sibling.");
+        //make room in the parent for the middle value and the new child
+        for(int j = parent.values; j > i; j--){
+            parent.setChild(j + 1, parent.child(j));
+        }
+        parent.setChild(i + 1, sibling);
+        parent.insertValue(i, centerValue);
+
+        //the parent's total is unchanged, but a new root starts out without one
+        if(orderStatistics){
+            recount(full);
+            recount(sibling);
+            recount(parent);
+        }
 
-            //these will store the sibling's value and the parent's grabbed value
-            int newCenter;
-            int newLeft = leftSibling.value1;
-            int newRight = walker.value1;
+        if(listener != null) listener.onSplit(centerValue, parent.values);
+    }
 
-            //determine which parent value to pull down, then update the parent and store the value
-            if(parent.isFourNode()){
-                if(newLeft < parent.value1){
-                    newCenter = parent.value1;
-                    parent.value1 = parent.value2;
-                    parent.value2 = parent.value3;
-                    parent.centerChild = parent.centerRightChild;
-                }
-                else if(newLeft < parent.value2){
-                    newCenter = parent.value2;
-                    parent.value2 = parent.value3;
-                    parent.centerChild = parent.centerLeftChild;
-                }
-                else{
-                    newCenter = parent.value3;
-                    parent.rightChild = parent.centerRightChild;
-                    parent.centerChild = parent.centerLeftChild;
-                }
+/*
+ * This method makes sure the child at index i of parent has at least two values before we
+ * step into it, rotating from a sibling that can spare a value and merging with one otherwise.
+ * It returns the node to continue the descent at.
+ */
+    private TwoFourTreeItem fixChild(TwoFourTreeItem parent, int i) {
+        TwoFourTreeItem child = parent.child(i);
+        if(!child.isTwoNode()) return child;
 
-                //these updates are consistent regardless of location
-                parent.value3 = 0;
-                parent.values = 2;
-                parent.centerLeftChild = null;
-                parent.centerRightChild = null;
-            
-            }
-            else if(parent.isThreeNode()){
-                if(newLeft < parent.value1){
-                    newCenter = parent.value1;
-                    parent.value1 = parent.value2;
-                }
-                else{
-                    newCenter = parent.value2;
-                    parent.rightChild = parent.centerChild;
-                }
+        TwoFourTreeItem leftSibling = (i > 0) ? parent.child(i - 1) : null;
+        TwoFourTreeItem rightSibling = (i < parent.values) ? parent.child(i + 1) : null;
 
-                //these updates are consistent regardless of location
-                parent.value2 = 0;
-                parent.values = 1;                            
-                parent.centerChild = null;
+        //use left sibling if it's available
+        if(leftSibling != null && !leftSibling.isTwoNode()){
+            rotateRight(parent, i - 1);
+            return child;
+        }
+        if(rightSibling != null && !rightSibling.isTwoNode()){
+            rotateLeft(parent, i);
+            return child;
+        }
+        if(rightSibling != null){
+            return mergeChildren(parent, i);
+        }
+        return mergeChildren(parent, i - 1);
+    }
 
-            }
-            else{  //we know parent is two node, must be the root
-                //no need to update the current root since it will dissapear
-                newCenter = parent.value1;
-                root = leftSibling;
-                leftSibling.parent = null;
-            }
+/* Moves the value at index i of parent down into its right child, and the largest value of the
+ * left child up to replace it. The left child's rightmost subtree moves across with it. */
+    private void rotateRight(TwoFourTreeItem parent, int i) {
+        TwoFourTreeItem left = parent.child(i);
+        TwoFourTreeItem right = parent.child(i + 1);
+        int downValue = parent.value(i);
 
-            //make a new 3-node out of the left sibling
-
-            //first update values
-            leftSibling.value1 = newLeft;
-            leftSibling.value2 = newCenter;
-            leftSibling.value3 = newRight;
-            leftSibling.values = 3;
-
-            
-            //update relationships
-            //if sibling is a leaf, walker is too, so children don't exist
-            if(!leftSibling.isLeaf){
-                
-                //update children
-                leftSibling.centerLeftChild = leftSibling.rightChild;
-                leftSibling.centerRightChild = walker.leftChild;
-                leftSibling.rightChild = walker.rightChild;
-                //update parents
-                leftSibling.centerRightChild.parent = leftSibling;
-                leftSibling.rightChild.parent = leftSibling;
+        if(!right.isLeaf()){
+            for(int j = right.values + 1; j > 0; j--){
+                right.setChild(j, right.child(j - 1));
             }
-
-            //now we can reset the walker to continue at the merged node
-            walker = leftSibling;
+            right.child0 = left.child(left.values);
+            left.setChild(left.values, null);
         }
+        right.insertValue(0, downValue);
 
-        //othwerwise we use 2-node right sibling
-        else if(rightSibling != null){
+        int upValue = left.removeValue(left.values - 1);
+        parent.setValue(i, upValue);
 
-            if(debugEnabled) System.out.println("Merging with right sibling.");
+        if(orderStatistics){
+            recount(left);
+            recount(right);
+        }
 
-            //these will store the sibling's value and the parent's grabbed value
-            int newCenter;
-            int newLeft = walker.value1;
-            int newRight = rightSibling.value1;
+        if(listener != null) listener.onRotate(upValue, downValue, left.values);
+    }
 
-            //determine which parent value to pull down
-            //then update the parent and store the value
-            if(parent.isFourNode()){
-                if(newRight > parent.value3){
-                    newCenter = parent.value3;
-                    parent.centerChild = parent.centerLeftChild;
-                }
-                else if(newRight > parent.value2){
-                    newCenter = parent.value2;
-                    parent.value2 = parent.value3;
-                    parent.centerChild = parent.centerRightChild;
-                }
-                else{
-                    newCenter = parent.value1;
-                    parent.value1 = parent.value2;
-                    parent.value2 = parent.value3;
-                    parent.leftChild = parent.centerLeftChild;
-                    parent.centerChild = parent.centerRightChild;
-                }
+/* Moves the value at index i of parent down into its left child, and the smallest value of the
+ * right child up to replace it. The right child's leftmost subtree moves across with it. */
+    private void rotateLeft(TwoFourTreeItem parent, int i) {
+        TwoFourTreeItem left = parent.child(i);
+        TwoFourTreeItem right = parent.child(i + 1);
+        int downValue = parent.value(i);
 
-                //these updates are consistent regardless of location
-                parent.value3 = 0;
-                parent.values = 2;
-                parent.centerLeftChild = null;
-                parent.centerRightChild = null;
-            
+        if(!left.isLeaf()){
+            left.setChild(left.values + 1, right.child0);
+            for(int j = 0; j < right.values; j++){
+                right.setChild(j, right.child(j + 1));
             }
-            else if(parent.isThreeNode()){
-                if(newRight > parent.value2){
-                    newCenter = parent.value2;
-                }
-                else{
-                    newCenter = parent.value1;
-                    parent.value1 = parent.value2;
-                    parent.leftChild = parent.centerChild;
-                }
+            right.setChild(right.values, null);
+        }
+        left.insertValue(left.values, downValue);
 
-                //these updates are consistent regardless of location
-                parent.value2 = 0;
-                parent.values = 1;                            
-                parent.centerChild = null;
+        int upValue = right.removeValue(0);
+        parent.setValue(i, upValue);
 
-            }
-            else{  //we know parent is two node, must be the root
-                //no need to update the current root since it will dissapear
-                newCenter = parent.value1;
-                root = rightSibling;
-                rightSibling.parent = null;
-            }
+        if(orderStatistics){
+            recount(left);
+            recount(right);
+        }
 
-            //make a new 3-node out of the right sibling
-
-            //first update values
-            rightSibling.value3 = newRight;
-            rightSibling.value2 = newCenter;
-            rightSibling.value1 = newLeft;
-            rightSibling.values = 3;
-            
-            //update relationships
-            //if sibling is a leaf, walker is two, so children don't exist
-            if(!rightSibling.isLeaf){
-                
-                //update children
-                rightSibling.centerRightChild = rightSibling.leftChild;
-                rightSibling.centerLeftChild = walker.rightChild;
-                rightSibling.leftChild = walker.leftChild;
-                //update parents
-                rightSibling.centerLeftChild.parent = rightSibling;
-                rightSibling.leftChild.parent = rightSibling;
-            }
+        if(listener != null) listener.onRotate(upValue, downValue, right.values);
+    }
 
-            //now we can reset the walker to continue at the merged node
-            walker = rightSibling;
-            }
+/*
+ * This merges the 2-node children at index i and i + 1 of parent, with the value between them,
+ * into a single 4-node that keeps the left child. The right child goes to the free list, and a
+ * root left without values is replaced by the merged node. It returns the merged node.
+ */
+    private TwoFourTreeItem mergeChildren(TwoFourTreeItem parent, int i) {
+        TwoFourTreeItem left = parent.child(i);
+        TwoFourTreeItem right = parent.child(i + 1);
+        int newCenter = parent.value(i);
+
+        left.value2 = newCenter;
+        left.value3 = right.value1;
+        left.values = 3;
+        if(!left.isLeaf()){
+            left.child2 = right.child0;
+            left.child3 = right.child1;
+        }
+
+        //close the gap in the parent
+        for(int j = i + 1; j < parent.values; j++){
+            parent.setChild(j, parent.child(j + 1));
+        }
+        parent.setChild(parent.values, null);
+        parent.removeValue(i);
+
+        //the right child and a collapsed root are out of the tree now
+        if(right == rightmost) rightmost = left;
+        release(right);
+        if(parent.values == 0){
+            release(parent);
+            root = left;
+        }
 
-        //we finished our merge or skipped it
-        return walker;
+        if(orderStatistics) recount(left);
 
+        if(listener != null) listener.onMerge(newCenter, parent.values);
+
+        return left;
     }
 
 /*
- * This function finds the left subtree of a *value* within a given node. It takes a value and a node
- * and returns the left child of that node thats closest in value to the value. It will not work
- * if the value is not in the node.
+ * Builds a tree from keys[from, to), which must be sorted ascending with no duplicates.
+ * The tree is assembled bottom-up in a single pass over the keys, so it takes linear time
+ * and never splits a node. Most nodes are 3-nodes, which suits read-heavy use.
  */
-    public TwoFourTreeItem findValueChildL(int value, TwoFourTreeItem walker){
-        if(walker.isFourNode()){
-            if(value == walker.value1){
-                return walker.leftChild;
-            }
-            else if(value == walker.value2){
-                return walker.centerLeftChild;
-            }
-            else{
-                return walker.centerRightChild;
-            }
+    public static TwoFourTree fromSorted(int[] keys, int from, int to) {
+        return fromSorted(keys, from, to, 2);
+    }
+
+/*
+ * Builds a tree from keys[from, to) like fromSorted above, but lets the caller pick how full
+ * the nodes should be: 1 builds mostly 2-nodes to leave room for inserts, 2 mostly 3-nodes,
+ * and 3 mostly 4-nodes for the shortest tree. Nodes only stray from the chosen fill where
+ * the key count doesn't divide evenly.
+ */
+    public static TwoFourTree fromSorted(int[] keys, int from, int to, int keysPerNode) {
+        return fromSorted(keys, from, to, keysPerNode, false);
+    }
+
+/* Same as above, and also keeps order statistics in the built tree when asked to. */
+    public static TwoFourTree fromSorted(int[] keys, int from, int to, int keysPerNode, boolean orderStatistics) {
+        if(from < 0 || to > keys.length || from > to){
+            throw new IllegalArgumentException("Invalid key range [" + from + ", " + to + ")");
         }
-        else if(walker.isThreeNode()){
-            if(value == walker.value1){
-                return walker.leftChild;
-            }
-            else{
-                return walker.centerChild;
+        if(keysPerNode < 1 || keysPerNode > 3){
+            throw new IllegalArgumentException("keysPerNode must be 1, 2 or 3");
+        }
+        for(int i = from + 1; i < to; i++){
+            if(keys[i - 1] >= keys[i]){
+                throw new IllegalArgumentException("Keys must be sorted with no duplicates, see index " + i);
             }
         }
-        //if the above cases weren't used, we must be at root
-        return walker.leftChild;
+
+        TwoFourTree tree = new TwoFourTree(Storage.NODES, orderStatistics);
+        tree.bulkLoad(keys, from, to, keysPerNode);
+        return tree;
     }
 
 /*
- * This function finds the right subtree of a *value* within a given node. It takes a value and a node
- * and returns the right child of that node thats closest in value to the value. It will not work
- * if the value is not in the node.
+ * Builds a tree from keys in any order. The keys are copied, sorted with a primitive sort and
+ * stripped of duplicates before the linear build, so nothing is ever boxed.
  */
-    public TwoFourTreeItem findValueChildR(int value, TwoFourTreeItem walker){
-        if(walker.isFourNode()){
-            if(value == walker.value1){
-                return walker.centerLeftChild;
-            }
-            else if(value == walker.value2){
-                return walker.centerRightChild;
-            }
-            else{
-                return walker.rightChild;
-            }
+    public static TwoFourTree fromUnsorted(int[] keys) {
+        return fromUnsorted(keys, 2);
+    }
+
+    public static TwoFourTree fromUnsorted(int[] keys, int keysPerNode) {
+        int[] sorted = sortedUnique(keys);
+        return fromSorted(sorted, 0, sorted.length, keysPerNode);
+    }
+
+/*
+ * Snapshot format written by writeTo and read by readFrom. A header of the magic number, a
+ * version byte and the key count (all big-endian), then the keys in ascending order, each as
+ * an unsigned varint of its gap to the previous key minus one, where the key before the first
+ * is taken to be Integer.MIN_VALUE - 1. Dense keys cost a byte each, and no key costs more
+ * than five. A CRC32 of everything before it closes the snapshot.
+ */
+    private static final int SNAPSHOT_MAGIC = 0x3234544B;     // "24TK"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_BUFFER = 8192;
+
+/*
+ * Writes every key of the tree to out in the snapshot format above. It walks the tree with a
+ * cursor and encodes through a small fixed buffer, so saving takes the same memory whatever the
+ * size of the tree. out is flushed but left open.
+ */
+    public void writeTo(OutputStream out) throws IOException {
+        Cursor cursor = cursor();
+        cursor.seek(Integer.MIN_VALUE);
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[SNAPSHOT_BUFFER];
+
+        int used = putInt(buffer, 0, SNAPSHOT_MAGIC);
+        buffer[used++] = (byte) SNAPSHOT_VERSION;
+        used = putInt(buffer, used, size);
+
+        long previous = (long) Integer.MIN_VALUE - 1;
+        while(cursor.hasNext()){
+            //a varint is never more than 5 bytes, so only drain when fewer than that are left
+            if(used > buffer.length - 5){
+                crc.update(buffer, 0, used);
+                out.write(buffer, 0, used);
+                used = 0;
+            }
+            int key = cursor.next();
+            long gap = key - previous - 1;
+            previous = key;
+            while(gap >= 0x80){
+                buffer[used++] = (byte) (gap | 0x80);
+                gap >>>= 7;
+            }
+            buffer[used++] = (byte) gap;
         }
-        else if(walker.isThreeNode()){
-            if(value == walker.value1){
-                return walker.centerChild;
-            }
-            else{
-                return walker.rightChild;
-            }
+        crc.update(buffer, 0, used);
+        out.write(buffer, 0, used);
+
+        putInt(buffer, 0, (int) crc.getValue());
+        out.write(buffer, 0, 4);
+        out.flush();
+    }
+
+/* Same as above, writing at the channel's position. The channel is left open. */
+    public void writeTo(FileChannel channel) throws IOException {
+        writeTo(Channels.newOutputStream(channel));
+    }
+
+/*
+ * Reads a snapshot written by writeTo into a new tree, decoding the keys straight into the
+ * linear bulk build, so loading never holds more than a small read buffer on top of the tree
+ * itself. The stream is read in chunks, so it should hold nothing past the snapshot. A snapshot
+ * that is truncated, was written by something else, or fails its checksum throws IOException.
+ * in is left open.
+ */
+    public static TwoFourTree readFrom(InputStream in) throws IOException {
+        SnapshotReader reader = new SnapshotReader(in);
+        int count = reader.readHeader();
+
+        TwoFourTree tree = new TwoFourTree();
+        try{
+            tree.bulkLoad(reader, count, 2);
         }
-        //if the above cases weren't used, we must be at root
-        return walker.rightChild;
+        catch(UncheckedIOException e){
+            throw e.getCause();
+        }
+        reader.readTrailer();
+        return tree;
+    }
+
+/* Same as above, reading from the channel's position. The channel is left open. */
+    public static TwoFourTree readFrom(FileChannel channel) throws IOException {
+        return readFrom(Channels.newInputStream(channel));
+    }
 
+    private static int putInt(byte[] buffer, int at, int value) {
+        buffer[at] = (byte) (value >>> 24);
+        buffer[at + 1] = (byte) (value >>> 16);
+        buffer[at + 2] = (byte) (value >>> 8);
+        buffer[at + 3] = (byte) value;
+        return at + 4;
     }
 
 /*
- * This function finds grabs the left value child's left sibling. It takes a value and a node
- * and returns the second closest left child to the value. It will not work
- * if the value is not in the node.
+ * Decodes a snapshot through a fixed buffer, handing out one key per getAsInt so it can feed
+ * the bulk loader directly. The CRC trails the reads, covering each stretch of the buffer
+ * just before it's refilled.
  */
-    public TwoFourTreeItem findVCLSiblingL(int value, TwoFourTreeItem walker){
-        if(walker.isFourNode()){
-            if(value == walker.value1){
-                return null;
-            }
-            else if(value == walker.value2){
-                return walker.leftChild;
+    private static class SnapshotReader implements IntSupplier {
+        private final InputStream in;
+        private final byte[] buffer = new byte[SNAPSHOT_BUFFER];
+        private final CRC32 crc = new CRC32();
+        private int position = 0;
+        private int limit = 0;
+        //how much of the buffer has been folded into the crc
+        private int checked = 0;
+        private long previous = (long) Integer.MIN_VALUE - 1;
+
+        SnapshotReader(InputStream in) {
+            this.in = in;
+        }
+
+        int readHeader() throws IOException {
+            if(readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a TwoFourTree snapshot");
+            int version = readByte();
+            if(version != SNAPSHOT_VERSION) throw new IOException("Unknown snapshot version " + version);
+            int count = readInt();
+            if(count < 0) throw new IOException("Corrupt snapshot: negative key count " + count);
+            return count;
+        }
+
+        @Override
+        public int getAsInt() {
+            try{
+                long gap = 0;
+                for(int shift = 0; ; shift += 7){
+                    int b = readByte();
+                    if(shift == 28 && b > 0x0F) throw new IOException("Corrupt snapshot: varint too long");
+                    gap |= (long) (b & 0x7F) << shift;
+                    if(b < 0x80) break;
+                }
+                long key = previous + gap + 1;
+                if(key > Integer.MAX_VALUE) throw new IOException("Corrupt snapshot: key out of range");
+                previous = key;
+                return (int) key;
             }
-            else{
-                return walker.centerLeftChild;
+            catch(IOException e){
+                throw new UncheckedIOException(e);
             }
         }
-        else if(walker.isThreeNode()){
-            if(value == walker.value1){
-                return null;
-            }
-            else{
-                return walker.leftChild;
+
+        void readTrailer() throws IOException {
+            crc.update(buffer, checked, position - checked);
+            checked = position;
+            int expected = (int) crc.getValue();
+            if(readInt() != expected) throw new IOException("Corrupt snapshot: checksum mismatch");
+        }
+
+        private int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        private int readByte() throws IOException {
+            if(position == limit){
+                crc.update(buffer, checked, position - checked);
+                limit = in.read(buffer, 0, buffer.length);
+                if(limit <= 0){
+                    limit = 0;
+                    throw new EOFException("Truncated snapshot");
+                }
+                position = 0;
+                checked = 0;
             }
+            return buffer[position++] & 0xFF;
+        }
+    }
+
+/* Replaces the contents of this tree with the sorted keys[from, to). */
+    private void bulkLoad(int[] keys, int from, int to, int keysPerNode) {
+        int[] next = {from};
+        bulkLoad(() -> keys[next[0]++], to - from, keysPerNode);
+    }
+
+/* Replaces the contents of this tree with count keys taken in ascending order from source. */
+    private void bulkLoad(IntSupplier source, int count, int keysPerNode) {
+        root = null;
+        size = 0;
+        if(count > 0){
+            BulkLoader loader = new BulkLoader(source, keysPerNode);
+            root = loader.build(count, loader.heightFor(count));
+            size = count;
+        }
+
+        //a new tree has new edges
+        leftmost = root;
+        rightmost = root;
+        if(root != null){
+            while(!leftmost.isLeaf()) leftmost = leftmost.child0;
+            while(!rightmost.isLeaf()) rightmost = rightmost.child(rightmost.values);
         }
-        //if the above cases weren't used, we must be at root
-        return null;
+
+        if(filter != null) rebuildFilter();
+        if(cache != null) cache.clear();
+        if(listener != null) takeCensus(listener);
     }
 
 /*
- * This function finds grabs the right value child's right sibling. It takes a value and a node
- * and returns the second closest right child to the value. It will not work
- * if the value is not in the node.
+ * Builds perfectly balanced subtrees from a run of sorted keys. A subtree of height h (leaves
+ * are height 0) can hold between 2^(h+1) - 1 and 4^(h+1) - 1 keys, so at every node we pick a
+ * child count that keeps each child's share inside its own limits, then build the children
+ * left to right, taking the separators from the run as we pass them.
  */
-    public TwoFourTreeItem findVCRSiblingR(int value, TwoFourTreeItem walker){
-        if(walker.isFourNode()){
-            if(value == walker.value1){
-                return walker.centerRightChild;
-            }
-            else if(value == walker.value2){
-                return walker.rightChild;
-            }
-            else{
-                return null;
-            }
+    private class BulkLoader {
+        final IntSupplier source;
+        final int keysPerNode;
+
+        BulkLoader(IntSupplier source, int keysPerNode) {
+            this.source = source;
+            this.keysPerNode = keysPerNode;
+        }
+
+        //the fewest keys a subtree of this height can hold
+        long minKeys(int height) {
+            return (1L << (height + 1)) - 1;
+        }
+
+        //the most keys a subtree of this height can hold
+        long maxKeys(int height) {
+            return (height >= 31) ? Long.MAX_VALUE : (1L << (2 * (height + 1))) - 1;
+        }
+
+        //the smallest height at which nodes of the chosen fill can hold count keys
+        int heightFor(int count) {
+            int height = 0;
+            long capacity = keysPerNode;
+            while(capacity < count){
+                capacity = capacity * (keysPerNode + 1) + keysPerNode;
+                height++;
+            }
+            //2-node fills can overshoot the minimum, in which case we settle one level lower
+            while(minKeys(height) > count) height--;
+            return height;
         }
-        else if(walker.isThreeNode()){
-            if(value == walker.value1){
-                return walker.rightChild;
+
+        TwoFourTreeItem build(int count, int height) {
+            TwoFourTreeItem node;
+
+            //leaves simply take the next few keys
+            if(height == 0){
+                int first = source.getAsInt();
+                if(count == 1) node = newItem(first);
+                else if(count == 2) node = newItem(first, source.getAsInt());
+                else node = newItem(first, source.getAsInt(), source.getAsInt());
+                return node;
+            }
+
+            //try the preferred child count first, then the ones closest to it
+            int childCount = 0;
+            int[] order = {keysPerNode + 1, keysPerNode, keysPerNode + 2, keysPerNode - 1, keysPerNode + 3};
+            for(int c : order){
+                if(c < 2 || c > 4) continue;
+                long share = count - (c - 1);
+                if(share >= c * minKeys(height - 1) && share <= c * maxKeys(height - 1)){
+                    childCount = c;
+                    break;
+                }
             }
-            else{
-                return null;
+
+            //spread the keys under this node as evenly as possible among the children
+            int share = count - (childCount - 1);
+            int each = share / childCount;
+            int extra = share % childCount;
+
+            node = newItem(0);
+            node.values = childCount - 1;
+            if(orderStatistics) ((CountedItem) node).count = count;
+
+            for(int c = 0; c < childCount; c++){
+                node.setChild(c, build(each + (c < extra ? 1 : 0), height - 1));
+                if(c < childCount - 1) node.setValue(c, source.getAsInt());
             }
-        }
-        //if the above cases weren't used, we must be at root
-        return null;
 
+            return node;
+        }
     }
 
 /* This is the constructor. It is not used. */
     public TwoFourTree() {
         //Root is established/deleted in the add and delete functions
     }
+
+/* This constructor picks where the nodes are stored. See Storage. */
+    public TwoFourTree(Storage storage) {
+        this(storage, false);
+    }
+
+/*
+ * This constructor also decides whether every node keeps the number of values in its subtree.
+ * That makes rank, select and countInRange logarithmic, at the cost of an extra int per node
+ * and a pass over the path down on every add and delete. It needs Storage.NODES.
+ */
+    public TwoFourTree(Storage storage, boolean orderStatistics) {
+        if(storage == Storage.POOL){
+            if(orderStatistics){
+                throw new IllegalArgumentException("Order statistics need Storage.NODES");
+            }
+            pool = new PooledTwoFourTree();
+        }
+        this.orderStatistics = orderStatistics;
+        //a 2-3-4 tree of ints is never more than 32 levels deep, and a delete can step through one extra node
+        if(orderStatistics) path = new TwoFourTreeItem[64];
+    }
 }
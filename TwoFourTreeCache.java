@@ -0,0 +1,150 @@
+import java.util.Arrays;
+
+/*
+ * A small fixed-size cache of hasValue answers for one TwoFourTree, for lookups that keep coming
+ * back to the same few keys. A tree only has one while it is switched on with
+ * TwoFourTree.enableCache().
+ *
+ * Entries live in one long[], each holding a key in its high half and a few flags in its low
+ * half, so nothing is boxed. A key hashes to a bucket of BUCKET_SLOTS consecutive entries, which
+ * is one 64-byte cache line, and is looked for only there. A key goes in the first empty entry of
+ * its bucket; once the bucket is full, a CLOCK hand sweeps it and replaces the first entry that
+ * hasn't been looked up since the hand last passed, clearing the referenced flag of the ones
+ * that have. Entries are only ever replaced, never emptied, so a lookup can stop at the first
+ * empty entry it meets.
+ *
+ * The cache remembers absent keys as well as present ones. addValue and deleteValue update the
+ * entry for their key if it has one, and anything that rebuilds the whole tree clears the cache.
+ *
+ * The cache belongs to the tree's thread; its counters are plain longs.
+ */
+public class TwoFourTreeCache {
+    private static final int BUCKET_SLOTS = 8;
+    private static final long OCCUPIED = 1;
+    private static final long PRESENT = 2;
+    private static final long REFERENCED = 4;
+
+    //lookup returns these when the key is cached, and UNKNOWN when the tree has to be asked.
+    static final int ABSENT = 0;
+    static final int FOUND = 1;
+    static final int UNKNOWN = -1;
+
+    private final long[] slots;
+    private final int bucketMask;
+    private int hand = 0;
+
+    private long lookups = 0;
+    private long hits = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    //makes a cache with room for at least capacity keys, rounded up to a power of two.
+    TwoFourTreeCache(int capacity) {
+        int size = BUCKET_SLOTS;
+        while(size < capacity && size < (1 << 30)){
+            size <<= 1;
+        }
+        slots = new long[size];
+        bucketMask = size / BUCKET_SLOTS - 1;
+    }
+
+/* Returns how many hasValue calls asked the cache. */
+    public long lookups() {
+        return lookups;
+    }
+
+/* Returns how many of those the cache answered without the tree. */
+    public long hits() {
+        return hits;
+    }
+
+/* Returns the share of lookups the cache answered, or 0 before there were any. */
+    public double hitRatio() {
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
+/* Returns how many cached keys were pushed out to make room for others. */
+    public long evictions() {
+        return evictions;
+    }
+
+/* Returns how many cached answers an add or delete had to change. */
+    public long invalidations() {
+        return invalidations;
+    }
+
+/* Returns how many keys the cache can hold. */
+    public int capacity() {
+        return slots.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cache %,d keys  lookups %d  hits %d (%.1f%%)  evictions %d  invalidations %d",
+                slots.length, lookups, hits, 100 * hitRatio(), evictions, invalidations);
+    }
+
+    //returns FOUND or ABSENT if the key's answer is cached, and UNKNOWN otherwise.
+    int lookup(int key) {
+        lookups++;
+        int base = bucketFor(key);
+        for(int i = base; i < base + BUCKET_SLOTS; i++){
+            long slot = slots[i];
+            if((slot & OCCUPIED) == 0) return UNKNOWN;
+            if((int) (slot >>> 32) == key){
+                if((slot & REFERENCED) == 0) slots[i] = slot | REFERENCED;
+                hits++;
+                return ((slot & PRESENT) != 0) ? FOUND : ABSENT;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    //remembers the tree's answer for a key that lookup just missed.
+    void put(int key, boolean present) {
+        long entry = ((long) key << 32) | OCCUPIED | (present ? PRESENT : 0);
+        int base = bucketFor(key);
+        for(int i = base; i < base + BUCKET_SLOTS; i++){
+            if((slots[i] & OCCUPIED) == 0){
+                slots[i] = entry;
+                return;
+            }
+        }
+
+        //the bucket is full, so give every referenced entry a second chance on the way round
+        while(true){
+            int i = base + (hand++ & (BUCKET_SLOTS - 1));
+            if((slots[i] & REFERENCED) == 0){
+                slots[i] = entry;
+                evictions++;
+                return;
+            }
+            slots[i] &= ~REFERENCED;
+        }
+    }
+
+    //the tree just added or removed key, so a cached answer for it has to change.
+    void update(int key, boolean present) {
+        int base = bucketFor(key);
+        for(int i = base; i < base + BUCKET_SLOTS; i++){
+            long slot = slots[i];
+            if((slot & OCCUPIED) == 0) return;
+            if((int) (slot >>> 32) == key){
+                slots[i] = present ? (slot | PRESENT) : (slot & ~PRESENT);
+                invalidations++;
+                return;
+            }
+        }
+    }
+
+    //forgets every answer, for when the whole tree was replaced.
+    void clear() {
+        Arrays.fill(slots, 0);
+    }
+
+    //the first slot of the key's bucket. The multiply spreads nearby keys, and the shift folds its high bits in.
+    private int bucketFor(int key) {
+        int hash = key * 0x9E3779B9;
+        return ((hash ^ (hash >>> 16)) & bucketMask) * BUCKET_SLOTS;
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.function.IntSupplier;
+
+/*
+ * A blocked Bloom filter over the values of one TwoFourTree, which hasValue asks before walking
+ * the tree. A tree only has one while it is switched on with TwoFourTree.enableFilter().
+ *
+ * The bits are split into blocks of eight longs, one 64-byte cache line each. A value hashes to
+ * one block and sets one bit in each of its eight words, so a lookup reads a single cache line,
+ * and a value that was never added is turned away as soon as one of its bits is clear. With
+ * BITS_PER_KEY bits for every value the filter was sized for, fewer than 1 in 1000 absent values
+ * get through even when it is full, and the tree itself answers those.
+ *
+ * A Bloom filter can't forget a value, so deleteValue leaves the bits alone and only counts
+ * the removal. Stale bits can only let more absent values through, never turn a present one
+ * away. The tree rebuilds the filter from its values once removals pass an eighth of the
+ * capacity or adds pass the capacity itself, and every rebuild sizes it for twice the values
+ * there are then, so a growing tree rebuilds a logarithmic number of times and a shrinking
+ * one gives back the bits it no longer needs.
+ *
+ * The filter belongs to the tree's thread; its counters are plain longs.
+ */
+public class TwoFourTreeFilter {
+    private static final int BITS_PER_KEY = 16;
+    private static final int WORDS_PER_BLOCK = 8;
+    private static final int MIN_CAPACITY = 1024;
+
+    //one odd multiplier per word of a block; the top 6 bits of hash * SALT[i] pick the bit in word i.
+    private static final long[] SALT = {
+            0x47b6137b44974d91L, 0x8824ad5ba2b7289dL, 0x705495c72df1424bL, 0x9efc49475c6bfb31L,
+            0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0xd6e8feb86659fd93L, 0x9e3779b97f4a7c15L
+    };
+
+    private long[] words;
+    private int blocks;
+    private int capacity;
+    private int added;
+    private int removed;
+
+    private long lookups = 0;
+    private long rejections = 0;
+    private long falsePositives = 0;
+    private long rebuilds = 0;
+
+    //builds the filter for the count values source hands out.
+    TwoFourTreeFilter(int count, IntSupplier source) {
+        build(count, source);
+    }
+
+/* Returns how many hasValue calls asked the filter. */
+    public long lookups() {
+        return lookups;
+    }
+
+/* Returns how many of those the filter answered on its own, because the value was certainly absent. */
+    public long rejections() {
+        return rejections;
+    }
+
+/* Returns how many lookups the filter let through for values the tree turned out not to hold. */
+    public long falsePositives() {
+        return falsePositives;
+    }
+
+/* Returns the share of lookups for absent values that the filter let through, or 0 before there were any. */
+    public double falsePositiveRate() {
+        long absent = rejections + falsePositives;
+        return (absent == 0) ? 0 : (double) falsePositives / absent;
+    }
+
+/* Returns how many times the filter was rebuilt from the tree's values. */
+    public long rebuilds() {
+        return rebuilds;
+    }
+
+/* Returns how many values the filter is sized for until its next rebuild. */
+    public int capacity() {
+        return capacity;
+    }
+
+/* Returns the size of the filter's bit array in bytes. */
+    public long bytes() {
+        return (long) words.length * Long.BYTES;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("filter %,dKB  lookups %d  rejected %d  false positives %d (%.3f%%)  rebuilds %d",
+                bytes() / 1024, lookups, rejections, falsePositives, 100 * falsePositiveRate(), rebuilds);
+    }
+
+    //returns false if the value is certainly not in the tree, and true if the tree has to be asked.
+    boolean mightContain(int value) {
+        lookups++;
+        long hash = hash(value);
+        int base = block(hash) * WORDS_PER_BLOCK;
+
+        //every word is read either way, so the loop has no exit that depends on the bits
+        long all = -1L;
+        for(int i = 0; i < WORDS_PER_BLOCK; i++){
+            all &= words[base + i] >>> ((hash * SALT[i]) >>> 58);
+        }
+        if((all & 1) == 0){
+            rejections++;
+            return false;
+        }
+        return true;
+    }
+
+    //the tree was asked after mightContain and didn't hold the value.
+    void falsePositive() {
+        falsePositives++;
+    }
+
+    //records a value that was added to the tree, and returns true once the filter should be rebuilt.
+    boolean add(int value) {
+        set(value);
+        return ++added > capacity;
+    }
+
+    //records a value that was removed from the tree, and returns true once the filter should be rebuilt.
+    boolean remove() {
+        return ++removed > capacity / 8;
+    }
+
+    //throws the bits away and sets them again for the count values source hands out.
+    void rebuild(int count, IntSupplier source) {
+        build(count, source);
+        rebuilds++;
+    }
+
+    private void build(int count, IntSupplier source) {
+        capacity = Math.max(MIN_CAPACITY, 2 * count);
+        blocks = (int) (((long) capacity * BITS_PER_KEY + 511) / 512);
+        words = new long[blocks * WORDS_PER_BLOCK];
+        added = count;
+        removed = 0;
+        for(int i = 0; i < count; i++){
+            set(source.getAsInt());
+        }
+    }
+
+    private void set(int value) {
+        long hash = hash(value);
+        int base = block(hash) * WORDS_PER_BLOCK;
+        for(int i = 0; i < WORDS_PER_BLOCK; i++){
+            words[base + i] |= 1L << ((hash * SALT[i]) >>> 58);
+        }
+    }
+
+    //the high half of the hash, scaled into [0, blocks) without a division.
+    private int block(long hash) {
+        return (int) (((hash >>> 32) * blocks) >>> 32);
+    }
+
+    //the 64-bit finalizer from MurmurHash3, which spreads every bit of the value over the whole hash.
+    private static long hash(int value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,163 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Operation counters and a census of the node mix for one TwoFourTree, kept by listening to
+ * its events. A tree only has one while metrics are switched on with TwoFourTree.enableMetrics();
+ * otherwise it keeps no counters at all.
+ *
+ * The tree is the only writer. Each counter is updated with a plain read and a lazySet, which
+ * costs no more than an ordinary store but still lets any other thread read the counters at any
+ * time without locking or stopping the tree. A reader sees every counter as it was at some
+ * recent moment, though not necessarily all of them at the same moment.
+ */
+public class TwoFourTreeMetrics implements TreeEventListener {
+    private static final int SPLITS = 0;
+    private static final int ROTATIONS = 1;
+    private static final int MERGES = 2;
+    private static final int ROOT_SPLITS = 3;
+    private static final int ROOT_COLLAPSES = 4;
+    private static final int DESCENTS = 5;
+    private static final int DESCENT_STEPS = 6;
+    private static final int HEIGHT = 7;
+    private static final int TWO_NODES = 8;         // then THREE_NODES and FOUR_NODES, indexed by values - 1.
+
+    private final AtomicLongArray counters = new AtomicLongArray(11);
+
+    //events only come from the tree's own thread, so the read and the store can't interleave with another add.
+    private void add(int counter, long delta) {
+        counters.lazySet(counter, counters.get(counter) + delta);
+    }
+
+    @Override
+    public void onDescend(Operation operation, int value, boolean result, int depth) {
+        add(DESCENTS, 1);
+        add(DESCENT_STEPS, depth);
+    }
+
+    @Override
+    public void onSplit(int middleValue, int parentValues) {
+        add(SPLITS, 1);
+        //the 4-node became two 2-nodes, and the parent gained a value or was created
+        nodeChanged(3, 0);
+        nodeChanged(0, 1);
+        nodeChanged(0, 1);
+        nodeChanged(parentValues - 1, parentValues);
+        if(parentValues == 1){
+            add(ROOT_SPLITS, 1);
+            add(HEIGHT, 1);
+        }
+    }
+
+    @Override
+    public void onRotate(int upValue, int downValue, int siblingValues) {
+        add(ROTATIONS, 1);
+        nodeChanged(1, 2);
+        nodeChanged(siblingValues + 1, siblingValues);
+    }
+
+    @Override
+    public void onMerge(int downValue, int parentValues) {
+        add(MERGES, 1);
+        //one 2-node became a 4-node, the other is gone, and the parent lost a value
+        nodeChanged(1, 3);
+        nodeChanged(1, 0);
+        nodeChanged(parentValues + 1, parentValues);
+        if(parentValues == 0){
+            add(ROOT_COLLAPSES, 1);
+            add(HEIGHT, -1);
+        }
+    }
+
+    @Override
+    public void onInsert(int value, int leafValues) {
+        nodeChanged(leafValues - 1, leafValues);
+        if(leafValues == 1) add(HEIGHT, 1);
+    }
+
+    @Override
+    public void onRemove(int value, int leafValues) {
+        nodeChanged(leafValues + 1, leafValues);
+        if(leafValues == 0) add(HEIGHT, -1);
+    }
+
+    @Override
+    public void onRebuild(long twoNodes, long threeNodes, long fourNodes, int height) {
+        counters.lazySet(TWO_NODES, twoNodes);
+        counters.lazySet(TWO_NODES + 1, threeNodes);
+        counters.lazySet(TWO_NODES + 2, fourNodes);
+        counters.lazySet(HEIGHT, height);
+    }
+
+/* A node went from holding from values to holding to values, where 0 means it didn't exist. */
+    private void nodeChanged(int from, int to) {
+        if(from > 0) add(TWO_NODES + from - 1, -1);
+        if(to > 0) add(TWO_NODES + to - 1, 1);
+    }
+
+    public long splits() {
+        return counters.get(SPLITS);
+    }
+
+    public long rotations() {
+        return counters.get(ROTATIONS);
+    }
+
+    public long merges() {
+        return counters.get(MERGES);
+    }
+
+    public long rootSplits() {
+        return counters.get(ROOT_SPLITS);
+    }
+
+    public long rootCollapses() {
+        return counters.get(ROOT_COLLAPSES);
+    }
+
+/* Returns how many adds, finds and deletes have been counted. */
+    public long descents() {
+        return counters.get(DESCENTS);
+    }
+
+/* Returns the average number of nodes an add, find or delete visited, or 0 before the first one. */
+    public double averageDescentDepth() {
+        long descents = counters.get(DESCENTS);
+        return (descents == 0) ? 0 : (double) counters.get(DESCENT_STEPS) / descents;
+    }
+
+/* Returns the number of levels in the tree, which is 0 for an empty tree. */
+    public int height() {
+        return (int) counters.get(HEIGHT);
+    }
+
+    public long twoNodes() {
+        return counters.get(TWO_NODES);
+    }
+
+    public long threeNodes() {
+        return counters.get(TWO_NODES + 1);
+    }
+
+    public long fourNodes() {
+        return counters.get(TWO_NODES + 2);
+    }
+
+    public long nodes() {
+        return twoNodes() + threeNodes() + fourNodes();
+    }
+
+/* Sets the operation counters back to 0 from the thread that uses the tree. The height and the
+ * census describe the tree, so they stay. */
+    public void reset() {
+        for(int counter = SPLITS; counter <= DESCENT_STEPS; counter++){
+            counters.set(counter, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("splits %d (root %d)  rotations %d  merges %d (root %d)  avg depth %.2f  height %d  "
+                + "nodes 2:%d 3:%d 4:%d", splits(), rootSplits(), rotations(), merges(), rootCollapses(),
+                averageDescentDepth(), height(), twoNodes(), threeNodes(), fourNodes());
+    }
+}
@@ -0,0 +1,204 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Generates the key, strike and removal sets the harnesses feed to the trees, as plain int
+ * arrays. Duplicates are removed by sorting the primitive array and compacting it in place, and
+ * shuffling is an in-place Fisher-Yates, so even 10M keys cost one int[] and no boxed garbage.
+ *
+ * Everything is drawn from one Random seeded in the constructor, so the same seed and the same
+ * sequence of calls always give the same sets.
+ */
+public class Workload {
+    /*
+     * How the values of a set are drawn from [0, bound):
+     * UNIFORM         every value is equally likely.
+     * ZIPFIAN         value k is drawn with probability proportional to 1 / (k + 1)^0.99, so a few
+     *                 small values are drawn over and over.
+     * SEQUENTIAL      consecutive values from a random start, in ascending order.
+     * CLUSTERED       dense runs of CLUSTER_SIZE values, each within CLUSTER_SPAN of a random start.
+     * REVERSE_SORTED  uniform values, in descending order.
+     */
+    public enum Distribution {UNIFORM, ZIPFIAN, SEQUENTIAL, CLUSTERED, REVERSE_SORTED}
+
+    //keys are drawn below this, like the original generators did.
+    public static final int KEY_BOUND = 1000000000;
+
+    private static final double ZIPF_EXPONENT = 0.99;
+    private static final int CLUSTER_SIZE = 1000;
+    private static final int CLUSTER_SPAN = 4000;
+
+    private final long seed;
+    private final Random random;
+    private final boolean shuffle;                  // when false the unordered sets come back ascending.
+
+/* This is the constructor. Sets that have no order of their own are only shuffled if shuffle is true. */
+    public Workload(long seed, boolean shuffle) {
+        this.seed = seed;
+        this.random = new Random(seed);
+        this.shuffle = shuffle;
+    }
+
+    public Workload(long seed) {
+        this(seed, true);
+    }
+
+    public long seed() {
+        return seed;
+    }
+
+/*
+ * Returns the distinct values among howMany draws below KEY_BOUND. Except for SEQUENTIAL,
+ * collisions make that a little fewer than howMany, and ZIPFIAN draws give a lot fewer.
+ */
+    public int[] keys(int howMany, Distribution distribution) {
+        return arrange(draw(howMany, KEY_BOUND, distribution), distribution);
+    }
+
+/*
+ * Returns the distinct keys among howMany picks from keys, where the position of each pick is
+ * drawn with the given distribution. With ZIPFIAN the same few keys are picked over and over.
+ */
+    public int[] strikes(int[] keys, int howMany, Distribution distribution) {
+        if(keys.length == 0) return new int[0];
+
+        int[] picks = draw(howMany, keys.length, distribution);
+        for(int i = 0; i < picks.length; i++){
+            picks[i] = keys[picks[i]];
+        }
+        return arrange(picks, distribution);
+    }
+
+/* Returns the distinct values of the first half of strikes, shuffled. */
+    public int[] removals(int[] strikes) {
+        int[] removes = distinct(Arrays.copyOf(strikes, strikes.length / 2));
+        if(shuffle) shuffle(removes);
+        return removes;
+    }
+
+/* Returns howMany raw draws below bound, duplicates and all, in the order they were drawn. */
+    public int[] draw(int howMany, int bound, Distribution distribution) {
+        int[] values = new int[howMany];
+
+        switch(distribution){
+            case ZIPFIAN: {
+                Zipf zipf = new Zipf(bound, ZIPF_EXPONENT);
+                for(int i = 0; i < howMany; i++) values[i] = zipf.next(random) - 1;
+                break;
+            }
+            case SEQUENTIAL: {
+                int start = random.nextInt(Math.max(1, bound - howMany + 1));
+                for(int i = 0; i < howMany; i++) values[i] = (int) ((start + (long) i) % bound);
+                break;
+            }
+            case CLUSTERED: {
+                int span = Math.min(CLUSTER_SPAN, bound);
+                int start = 0;
+                for(int i = 0; i < howMany; i++){
+                    if(i % CLUSTER_SIZE == 0) start = random.nextInt(bound - span + 1);
+                    values[i] = start + random.nextInt(span);
+                }
+                break;
+            }
+            default:
+                for(int i = 0; i < howMany; i++) values[i] = random.nextInt(bound);
+                break;
+        }
+        return values;
+    }
+
+/* Shuffles values in place with Fisher-Yates. */
+    public void shuffle(int[] values) {
+        for(int i = values.length - 1; i > 0; i--){
+            int j = random.nextInt(i + 1);
+            int swap = values[i];
+            values[i] = values[j];
+            values[j] = swap;
+        }
+    }
+
+/* Sorts values in place and returns its distinct values, which is values itself if there were no duplicates. */
+    public static int[] distinct(int[] values) {
+        if(values.length == 0) return values;
+
+        Arrays.sort(values);
+        int kept = 1;
+        for(int i = 1; i < values.length; i++){
+            if(values[i] != values[kept - 1]) values[kept++] = values[i];
+        }
+        return (kept == values.length) ? values : Arrays.copyOf(values, kept);
+    }
+
+/* Removes the duplicates from values and puts what is left in the order the distribution calls for. */
+    private int[] arrange(int[] values, Distribution distribution) {
+        values = distinct(values);
+
+        if(distribution == Distribution.REVERSE_SORTED){
+            for(int i = 0, j = values.length - 1; i < j; i++, j--){
+                int swap = values[i];
+                values[i] = values[j];
+                values[j] = swap;
+            }
+        }
+        else if(distribution != Distribution.SEQUENTIAL && shuffle){
+            shuffle(values);
+        }
+        return values;
+    }
+
+/*
+ * Draws ranks 1..n with probability proportional to 1 / rank^exponent in constant time, without
+ * the O(n) normalisation table, using rejection-inversion (Hormann and Derflinger, 1996).
+ */
+    private static final class Zipf {
+        private final int n;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralN;
+        private final double s;
+
+        Zipf(int n, double exponent) {
+            this.n = n;
+            this.exponent = exponent;
+            hIntegralX1 = hIntegral(1.5) - 1;
+            hIntegralN = hIntegral(n + 0.5);
+            s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+        }
+
+        int next(Random random) {
+            while(true){
+                double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+                double x = hIntegralInverse(u);
+                int k = (int) Math.max(1, Math.min(n, (long) (x + 0.5)));
+
+                //accept right away inside the squeeze, otherwise check against the exact bound
+                if(k - x <= s || u >= hIntegral(k + 0.5) - h(k)) return k;
+            }
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1 - exponent) * logX) * logX;
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = Math.max(-1, x * (1 - exponent));
+            return Math.exp(helper1(t) * x);
+        }
+
+        //log(1 + x) / x, and (e^x - 1) / x, with series near zero where the quotients lose precision.
+        private static double helper1(double x) {
+            if(Math.abs(x) > 1e-8) return Math.log1p(x) / x;
+            return 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+        }
+
+        private static double helper2(double x) {
+            if(Math.abs(x) > 1e-8) return Math.expm1(x) / x;
+            return 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+        }
+    }
+}